@@ -0,0 +1,120 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ohdsi.sql.SqlRender;
+
+/**
+ * The SQL scripts used in the benchmarks. There are three sizes:
+ * <ul>
+ * <li>small: a single parameterized query</li>
+ * <li>medium: a cohort definition script as generated by ATLAS, with temp tables and conditional blocks</li>
+ * <li>large: about 1 MB of SQL, like the scripts generated when instantiating many cohorts at once. The rendered script
+ * is the medium script repeated for different cohort IDs.</li>
+ * </ul>
+ */
+public class BenchmarkScripts {
+	public static final String	SMALL		= "small";
+	public static final String	MEDIUM		= "medium";
+	public static final String	LARGE		= "large";
+
+	private static final int	LARGE_SIZE	= 1024 * 1024;
+
+	/**
+	 * Returns the SQL template, with parameters and conditional blocks.
+	 */
+	public static String getTemplate(String size) {
+		if (size.equals(SMALL))
+			return loadScript("small.sql");
+		String medium = loadScript("medium.sql");
+		if (size.equals(MEDIUM))
+			return medium;
+		if (size.equals(LARGE)) {
+			StringBuilder template = new StringBuilder();
+			while (template.length() < LARGE_SIZE)
+				template.append(medium).append("\n");
+			return template.toString();
+		}
+		throw new RuntimeException("Unknown script size: " + size);
+	}
+
+	public static String[] getParameterNames() {
+		return new String[] { "cdm_database_schema", "target_database_schema", "target_cohort_table", "target_cohort_id",
+				"cohort_database_schema", "cohort_table", "cohort_id", "restrict_to_cohort" };
+	}
+
+	public static String[] getParameterValues(int cohortId) {
+		return new String[] { "cdm_synpuf.dbo", "scratch.dbo", "cohort", Integer.toString(cohortId), "scratch.dbo",
+				"cohort", Integer.toString(cohortId), "TRUE" };
+	}
+
+	/**
+	 * Returns the rendered SQL Server script, as it would be passed to SqlTranslate and SqlSplit.
+	 */
+	public static String getRenderedSql(String size) {
+		if (!size.equals(LARGE))
+			return SqlRender.renderSql(getTemplate(size), getParameterNames(), getParameterValues(1));
+		String medium = getTemplate(MEDIUM);
+		StringBuilder sql = new StringBuilder();
+		int cohortId = 1;
+		while (sql.length() < LARGE_SIZE) {
+			sql.append(SqlRender.renderSql(medium, getParameterNames(), getParameterValues(cohortId))).append("\n");
+			cohortId++;
+		}
+		return sql.toString();
+	}
+
+	/**
+	 * Returns the target dialects listed in supportedDialects.csv, except SQL Server, which is the source dialect.
+	 */
+	public static List<String> getTargetDialects() {
+		String[] lines = loadResource("/inst/csv/supportedDialects.csv").split("\\r?\\n");
+		List<String> dialects = new ArrayList<String>();
+		for (int i = 1; i < lines.length; i++) {
+			String dialect = lines[i].split(",")[0].trim();
+			if (dialect.length() != 0 && !dialect.equals("sql server"))
+				dialects.add(dialect);
+		}
+		return dialects;
+	}
+
+	private static String loadScript(String name) {
+		return loadResource("/sql/" + name);
+	}
+
+	private static String loadResource(String name) {
+		InputStream inputStream = BenchmarkScripts.class.getResourceAsStream(name);
+		if (inputStream == null)
+			throw new RuntimeException("Cannot find resource " + name);
+		try {
+			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int length;
+			while ((length = inputStream.read(buffer)) != -1)
+				outputStream.write(buffer, 0, length);
+			inputStream.close();
+			return outputStream.toString("UTF-8");
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
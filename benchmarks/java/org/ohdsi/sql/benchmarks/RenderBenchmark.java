@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.ohdsi.sql.SqlRender;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+	@Param({ BenchmarkScripts.SMALL, BenchmarkScripts.MEDIUM, BenchmarkScripts.LARGE })
+	public String	size;
+
+	private String		template;
+	private String[]	parameterNames;
+	private String[]	parameterValues;
+
+	@Setup
+	public void setUp() {
+		template = BenchmarkScripts.getTemplate(size);
+		parameterNames = BenchmarkScripts.getParameterNames();
+		parameterValues = BenchmarkScripts.getParameterValues(1);
+	}
+
+	@Benchmark
+	public String renderSql() {
+		return SqlRender.renderSql(template, parameterNames, parameterValues);
+	}
+}
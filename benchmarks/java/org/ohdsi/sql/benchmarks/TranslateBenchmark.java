@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql.benchmarks;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.ohdsi.sql.SqlTranslate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TranslateBenchmark {
+	private static final String	SESSION_ID	= "abcdefgh";
+
+	// The target dialects in supportedDialects.csv. setUp() checks that this list is complete:
+	@Param({ "oracle", "postgresql", "pdw", "impala", "netezza", "bigquery", "spark", "sqlite", "redshift", "hive",
+			"sqlite extended", "duckdb", "snowflake", "synapse", "iris" })
+	public String				dialect;
+
+	@Param({ BenchmarkScripts.SMALL, BenchmarkScripts.MEDIUM, BenchmarkScripts.LARGE })
+	public String				size;
+
+	private String				sql;
+
+	@Setup
+	public void setUp() throws NoSuchFieldException {
+		String[] dialects = TranslateBenchmark.class.getField("dialect").getAnnotation(Param.class).value();
+		for (String targetDialect : BenchmarkScripts.getTargetDialects())
+			if (!Arrays.asList(dialects).contains(targetDialect))
+				throw new RuntimeException("Dialect " + targetDialect + " is missing from TranslateBenchmark");
+		sql = BenchmarkScripts.getRenderedSql(size);
+		// Load the replacement patterns before measuring:
+		SqlTranslate.translateSqlWithPath("SELECT 1;", dialect, SESSION_ID, null, null);
+	}
+
+	@Benchmark
+	public String translateSql() {
+		return SqlTranslate.translateSqlWithPath(sql, dialect, SESSION_ID, null, null);
+	}
+}
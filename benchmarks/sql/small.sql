@@ -0,0 +1,18 @@
+{DEFAULT @cdm_database_schema = cdm}
+{DEFAULT @min_observation_days = 365}
+{DEFAULT @restrict_to_cohort = FALSE}
+
+SELECT YEAR(observation_period_start_date) AS start_year,
+	gender_concept_id,
+	COUNT_BIG(*) AS person_count
+FROM @cdm_database_schema.observation_period op
+INNER JOIN @cdm_database_schema.person p
+	ON op.person_id = p.person_id
+{@restrict_to_cohort} ? {
+INNER JOIN @cohort_database_schema.@cohort_table c
+	ON c.subject_id = op.person_id
+		AND c.cohort_definition_id = @cohort_id
+}
+WHERE DATEDIFF(DAY, observation_period_start_date, observation_period_end_date) >= @min_observation_days
+GROUP BY YEAR(observation_period_start_date),
+	gender_concept_id;
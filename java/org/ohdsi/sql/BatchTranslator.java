@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders and translates many SQL files in one process, for the batch mode of the command line interface. The files are
+ * read from a directory (all files matching a glob pattern, in any subdirectory) or listed in a manifest file, and are
+ * processed concurrently by a pool of worker threads. The replacement patterns are loaded only once.<br/>
+ * <br/>
+ * The output mirrors the input: each file is written to the same relative path in the output directory, or in a
+ * subdirectory per target dialect when translating.
+ */
+public class BatchTranslator {
+	private File			input;
+	private File			outputFolder;
+	private String			glob					= "**.sql";
+	private String[]		parameters				= null;
+	private String[]		values					= null;
+	private List<String>	targetDialects			= new ArrayList<String>();
+	private String			sessionId				= null;
+	private String			tempEmulationSchema		= null;
+	private int				threads					= Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * @param input
+	 *            A directory containing the SQL files, or a manifest: a text file listing the SQL files one per line,
+	 *            relative to the folder of the manifest. Empty lines and lines starting with # are ignored.
+	 * @param outputFolder
+	 *            The directory to write the results to
+	 */
+	public BatchTranslator(File input, File outputFolder) {
+		this.input = input;
+		this.outputFolder = outputFolder;
+	}
+
+	/**
+	 * @param glob
+	 *            The pattern the paths of the files in the input directory must match, relative to that directory. The
+	 *            default is **.sql
+	 */
+	public void setGlob(String glob) {
+		this.glob = glob;
+	}
+
+	/**
+	 * Renders each file before translating it.
+	 *
+	 * @param parameters
+	 *            The names of the parameters (without the &#64;-sign).
+	 * @param values
+	 *            The values of the parameters.
+	 */
+	public void setRenderParameters(String[] parameters, String[] values) {
+		this.parameters = parameters;
+		this.values = values;
+	}
+
+	public void addTargetDialect(String targetDialect) {
+		targetDialects.add(targetDialect);
+	}
+
+	public void setSessionId(String sessionId) {
+		this.sessionId = sessionId;
+	}
+
+	public void setTempEmulationSchema(String tempEmulationSchema) {
+		this.tempEmulationSchema = tempEmulationSchema;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	/**
+	 * Processes all files, printing the time taken per file and target dialect, and a summary at the end. A file that
+	 * fails is reported and skipped.
+	 *
+	 * @return The number of files that failed
+	 */
+	public int run() throws IOException {
+		long start = System.currentTimeMillis();
+		final Path basePath = input.isDirectory() ? input.toPath() : input.getAbsoluteFile().getParentFile().toPath();
+		List<Path> files = input.isDirectory() ? findFiles(basePath) : readManifest(basePath);
+		if (sessionId == null)
+			// Create the global session ID before the threads start, so all files use the same one:
+			sessionId = SqlTranslate.getGlobalSessionId();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<Long>> futures = new ArrayList<Future<Long>>();
+		for (final Path file : files)
+			futures.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					return processFile(basePath, file);
+				}
+			}));
+		int failed = 0;
+		long totalFileTime = 0;
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				try {
+					totalFileTime += futures.get(i).get();
+				} catch (ExecutionException e) {
+					failed++;
+					System.err.println("Error processing " + files.get(i) + ":");
+					e.getCause().printStackTrace();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+		System.out.println(String.format("Processed %d files (%d failed) for %d dialect(s) in %d ms on %d thread(s), %d ms total time per file",
+				files.size(), failed, Math.max(1, targetDialects.size()), System.currentTimeMillis() - start, Math.max(1, threads), totalFileTime));
+		return failed;
+	}
+
+	/**
+	 * Renders and translates a single file to all target dialects.
+	 *
+	 * @return The time it took, in milliseconds
+	 */
+	private long processFile(Path basePath, Path file) throws IOException {
+		long start = System.currentTimeMillis();
+		Path relativePath = basePath.relativize(file);
+		if (relativePath.startsWith(".."))
+			// Listed in the manifest, but not below its folder:
+			relativePath = file.getFileName();
+		String sql = readFile(file.toFile());
+		if (parameters != null)
+			sql = SqlRender.renderSql(sql, parameters, values);
+		if (targetDialects.size() == 0) {
+			writeFile(sql, outputFolder.toPath().resolve(relativePath).toFile());
+			System.out.println(String.format("%-60s %6d ms", relativePath, System.currentTimeMillis() - start));
+		} else {
+			for (String targetDialect : targetDialects) {
+				long dialectStart = System.currentTimeMillis();
+				String translatedSql = SqlTranslate.translateSql(sql, targetDialect, sessionId, tempEmulationSchema);
+				writeFile(translatedSql, outputFolder.toPath().resolve(targetDialect).resolve(relativePath).toFile());
+				System.out.println(String.format("%-60s %-16s %6d ms", relativePath, targetDialect, System.currentTimeMillis() - dialectStart));
+			}
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private List<Path> findFiles(final Path basePath) throws IOException {
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+		final List<Path> files = new ArrayList<Path>();
+		Files.walkFileTree(basePath, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				if (matcher.matches(basePath.relativize(file)))
+					files.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		Collections.sort(files);
+		return files;
+	}
+
+	private List<Path> readManifest(Path basePath) throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		BufferedReader reader = new BufferedReader(new FileReader(input));
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				line = line.trim();
+				if (line.length() != 0 && !line.startsWith("#"))
+					files.add(basePath.resolve(line).normalize());
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+		return files;
+	}
+
+	// Reads and writes files the same way as the command line interface does for a single file:
+	private static String readFile(File file) throws IOException {
+		StringBuilder text = new StringBuilder();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line = reader.readLine();
+			while (line != null) {
+				text.append(line);
+				text.append('\n');
+				line = reader.readLine();
+			}
+		} finally {
+			reader.close();
+		}
+		return text.toString();
+	}
+
+	private static void writeFile(String sql, File file) throws IOException {
+		file.getParentFile().mkdirs();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+		try {
+			writer.write(sql);
+		} finally {
+			writer.close();
+		}
+	}
+}
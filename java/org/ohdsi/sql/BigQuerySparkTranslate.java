@@ -22,13 +22,19 @@ import java.sql.*;
 import java.util.*;
 
 public class BigQuerySparkTranslate {
+	private static final String[]			CTE_PATTERNS		= { "with @@a (@@b) as (select @@c from @@d)",
+			"with @@a (@@b) as (select @@c union @@d)", "with @@a (@@b) as (select @@c)", ", @@a (@@b) as (select @@c from @@d)" };
+	private static final List<List<Block>>	PARSED_CTE_PATTERNS	= parsePatterns(CTE_PATTERNS);
 
 	/**
 	 * Iterates the elements of a comma-separated list of expressions (SELECT, GROUP BY, or ORDER BY).
 	 */
 	private static class CommaListIterator {
+		private static final List<Block>	LIST_ELEMENT_PATTERN	= SqlTranslate.parseSearchPattern(", @@a ,");
+		private static final List<Block>	ALIAS_PATTERN			= SqlTranslate.parseSearchPattern("^ @@a as @@b $");
+
 		private String						expressionList;
-		private List<Block>					listElementPattern;
+		private TokenBuffer					expressionListTokens;
 		private SqlTranslate.MatchedPattern	currentMatch;
 		private ListType					listType;
 		private String						expressionPrefix;
@@ -46,9 +52,9 @@ public class BigQuerySparkTranslate {
 			splitList();
 
 			expressionList = "," + expressionList + ",";
-			listElementPattern = SqlTranslate.parseSearchPattern(", @@a ,");
+			expressionListTokens = new TokenBuffer(expressionList);
 
-			currentMatch = SqlTranslate.search(expressionList, listElementPattern, 0);
+			currentMatch = SqlTranslate.search(expressionListTokens, LIST_ELEMENT_PATTERN, 0);
 			if (currentMatch.start != -1) {
 				splitExpression();
 			}
@@ -60,11 +66,11 @@ public class BigQuerySparkTranslate {
 
 		public void Next() {
 			// Finds the start token so that the next match doesn't overlap the current match
-			final int expr_length = StringUtils.tokenizeSql(expressionList.substring(currentMatch.start, currentMatch.end)).size();
+			final int expr_length = SqlTokens.countTokens(expressionList, currentMatch.start, currentMatch.end);
 			final int startToken = currentMatch.startToken + expr_length - 1;
 
 			// Searches using the start token from above.
-			currentMatch = SqlTranslate.search(expressionList, listElementPattern, startToken);
+			currentMatch = SqlTranslate.search(expressionListTokens, LIST_ELEMENT_PATTERN, startToken);
 			if (currentMatch.start != -1) {
 				splitExpression();
 			}
@@ -171,19 +177,20 @@ public class BigQuerySparkTranslate {
 		 * For a SELECT list expression, separates the main expression from the alias if it exists.
 		 */
 		private void splitAlias() {
-			List<StringUtils.Token> tokens = StringUtils.tokenizeSql(expressionPrefix);
+			SqlTokens tokens = new SqlTokens(expressionPrefix);
 
 			// Tries to match alias
-			final List<Block> alias_pattern = SqlTranslate.parseSearchPattern("^ @@a as @@b $");
-			final MatchedPattern alias_match = SqlTranslate.search("^" + expressionPrefix + "$", alias_pattern, 0);
+			final MatchedPattern alias_match = SqlTranslate.search("^" + expressionPrefix + "$", ALIAS_PATTERN, 0);
 			if (alias_match.start == -1) {
 				// No AS in the expression. Use heuristics to determine if the final identifier is an alias.
-				if (tokens.size() >= 2) {
-					StringUtils.Token possible_alias = tokens.get(tokens.size() - 1);
-					String preceding_token = tokens.get(tokens.size() - 2).text;
-					if (possible_alias.isIdentifier() && !preceding_token.equalsIgnoreCase(".") && !preceding_token.equalsIgnoreCase("+")) {
-						expressionPrefix = expressionPrefix.substring(0, possible_alias.start);
-						expressionSuffix = possible_alias.text;
+				final int token_count = tokens.getTokenCount();
+				if (token_count >= 2) {
+					final int possible_alias = token_count - 1;
+					final int preceding_token = token_count - 2;
+					if (tokens.isIdentifier(possible_alias) && !tokens.textEqualsIgnoreCase(preceding_token, ".")
+							&& !tokens.textEqualsIgnoreCase(preceding_token, "+")) {
+						expressionSuffix = tokens.getText(possible_alias);
+						expressionPrefix = expressionPrefix.substring(0, tokens.getStart(possible_alias));
 					}
 				}
 			} else {
@@ -196,11 +203,12 @@ public class BigQuerySparkTranslate {
 		 * ORDER BY elements can optionally end with ASC or DESC
 		 */
 		private void splitOrderElement() {
-			List<StringUtils.Token> tokens = StringUtils.tokenizeSql(GetFullExpression());
-			final StringUtils.Token last_token = tokens.get(tokens.size() - 1);
-			if (last_token.text.equalsIgnoreCase("asc") || last_token.text.equalsIgnoreCase("desc")) {
-				expressionPrefix = GetFullExpression().substring(0, last_token.start - 1);
-				expressionSuffix = " " + last_token.text;
+			final String full_expression = GetFullExpression();
+			SqlTokens tokens = new SqlTokens(full_expression);
+			final int last_token = tokens.getTokenCount() - 1;
+			if (tokens.textEqualsIgnoreCase(last_token, "asc") || tokens.textEqualsIgnoreCase(last_token, "desc")) {
+				expressionPrefix = full_expression.substring(0, tokens.getStart(last_token) - 1);
+				expressionSuffix = " " + tokens.getText(last_token);
 			}
 		}
 
@@ -210,20 +218,111 @@ public class BigQuerySparkTranslate {
 		 * @return true if the expression is a single column reference
 		 */
 		public boolean IsSingleColumnReference() {
-			List<StringUtils.Token> tokens = StringUtils.tokenizeSql(GetExpressionPrefix());
-			return tokens.size() == 3 && tokens.get(0).isIdentifier() && tokens.get(1).text.contentEquals(".") && tokens.get(2).isIdentifier();
+			SqlTokens tokens = new SqlTokens(GetExpressionPrefix());
+			return tokens.getTokenCount() == 3 && tokens.isIdentifier(0) && tokens.textEquals(1, ".") && tokens.isIdentifier(2);
+		}
+	}
+
+	/**
+	 * The expressions of a SELECT list, indexed by the text of their tokens. Finds the first expression that contains a
+	 * GROUP BY or ORDER BY expression, as searching each SELECT expression with the GROUP BY or ORDER BY expression as a
+	 * search pattern does, but without searching every SELECT expression again for every lookup. Expressions are split off
+	 * the SELECT list only as far as needed, in the same order as when searching, so any errors occur at the same point.
+	 */
+	private static class SelectList {
+		private String							selectList;
+		private CommaListIterator				iterator;
+		private boolean							isCurrentIndexed;
+		private List<SqlTokens>					expressions			= new ArrayList<SqlTokens>();
+		// For each token text, the positions (expression and token) where a token with that text is not in quotes:
+		private Map<String, List<int[]>>		textToPositions		= new HashMap<String, List<int[]>>();
+
+		public SelectList(String selectList) {
+			this.selectList = selectList;
+		}
+
+		/**
+		 * Finds the first SELECT expression containing the tokens.
+		 *
+		 * @param pattern
+		 *            The lower case texts of the tokens of the expression to find
+		 * @param patternText
+		 *            The expression to find
+		 * @return The ordinal of the SELECT expression, or -1 if no expression contains the tokens.
+		 */
+		public int find(String[] pattern, String patternText) {
+			List<int[]> positions = textToPositions.get(pattern[0]);
+			if (positions != null)
+				for (int[] position : positions)
+					if (matchesAt(expressions.get(position[0]), position[1], pattern))
+						return position[0] + 1;
+			if (iterator == null)
+				iterator = new CommaListIterator(selectList, CommaListIterator.ListType.SELECT);
+			while (!iterator.IsDone()) {
+				if (isCurrentIndexed) {
+					iterator.Next();
+					isCurrentIndexed = false;
+					continue;
+				}
+				SqlTokens tokens = tokenize(iterator.GetExpressionPrefix(), patternText);
+				int expression = expressions.size();
+				expressions.add(tokens);
+				isCurrentIndexed = true;
+				boolean isFound = false;
+				for (int token = 0; token < tokens.getTokenCount(); token++) {
+					if (tokens.isInQuotes(token))
+						continue;
+					String text = tokens.getText(token);
+					positions = textToPositions.get(text);
+					if (positions == null) {
+						positions = new ArrayList<int[]>(1);
+						textToPositions.put(text, positions);
+					}
+					positions.add(new int[] { expression, token });
+					if (!isFound && text.equals(pattern[0]) && matchesAt(tokens, token, pattern))
+						isFound = true;
+				}
+				if (isFound)
+					return expression + 1;
+			}
+			return -1;
+		}
+
+		private static SqlTokens tokenize(String expression, String patternText) {
+			try {
+				return new SqlTokens(expression.toLowerCase());
+			} catch (RuntimeException e) {
+				// Fail the same way searching the expression does:
+				SqlTranslate.search(expression, SqlTranslate.parseSearchPattern(patternText), 0);
+				throw e;
+			}
+		}
+
+		private static boolean matchesAt(SqlTokens tokens, int start, String[] pattern) {
+			if (start + pattern.length > tokens.getTokenCount())
+				return false;
+			for (int i = 0; i < pattern.length; i++)
+				if (!tokens.textEquals(start + i, pattern[i]))
+					return false;
+			return true;
 		}
 	}
 
 	/**
 	 * Removes named column lists from common table expressions and replaces them with aliases on the select list elements.
+	 * The SQL is edited in place, so the script is scanned once per pattern instead of once per common table expression.
 	 *
 	 * @param sql
 	 *            - the query to transform
-	 * @return the query after transformation
+	 * @param pattern
+	 *            - the text of the pattern to find the common table expressions
+	 * @param cte_pattern
+	 *            - the parsed pattern
 	 */
-	private static String bigQueryAliasCommonTableExpressions(String sql, String pattern) {
-		List<Block> cte_pattern = SqlTranslate.parseSearchPattern(pattern);
+	private static void bigQueryAliasCommonTableExpressions(TokenBuffer sql, String pattern, List<Block> cte_pattern) {
+		// A match can only start at the first token of the pattern:
+		if (sql.getTokenCount(cte_pattern.get(0).text) == 0)
+			return;
 
 		// Iterates over common table expressions with column lists
 		for (MatchedPattern cte_match = SqlTranslate.search(sql, cte_pattern, 0); cte_match.start != -1; cte_match = SqlTranslate.search(sql, cte_pattern,
@@ -231,33 +330,35 @@ public class BigQuerySparkTranslate {
 
 			CommaListIterator with_list_iter = new CommaListIterator(cte_match.variableToValue.get("@@b"), CommaListIterator.ListType.WITH_COLUMNS);
 			CommaListIterator select_list_iter = new CommaListIterator(cte_match.variableToValue.get("@@c"), CommaListIterator.ListType.SELECT);
-			String replacement_select_list = "";
+			StringBuilder replacement_select_list = new StringBuilder();
 
 			// Iterates the common table expression column list and the SELECT list in parallel
 			while (!with_list_iter.IsDone()) {
 				if (select_list_iter.IsDone()) {
 					break;
 				}
-				final String with_expr = with_list_iter.GetFullExpression();
-				final String select_expr = select_list_iter.GetExpressionPrefix() + " as " + with_expr;
-				if(replacement_select_list.length() > 0) {
-                    replacement_select_list = replacement_select_list + ",";
-                }
-				replacement_select_list = replacement_select_list + select_expr;
+				if (replacement_select_list.length() > 0) {
+					replacement_select_list.append(',');
+				}
+				replacement_select_list.append(select_list_iter.GetExpressionPrefix()).append(" as ").append(with_list_iter.GetFullExpression());
 				with_list_iter.Next();
 				select_list_iter.Next();
 			}
-			replacement_select_list = select_list_iter.GetListPrefix() + replacement_select_list + select_list_iter.GetListSuffix();
 
-			sql = sql.substring(0, cte_match.start)
-				+ pattern
+			String replacement = pattern
 					.replace("@@a", cte_match.variableToValue.get("@@a"))
 					.replace("(@@b)", "")
-					.replace("@@c", replacement_select_list)
-					.replace("@@d", nullToEmptyString(cte_match.variableToValue.get("@@d")))
-				+ sql.substring(cte_match.end);
+					.replace("@@c", select_list_iter.GetListPrefix() + replacement_select_list + select_list_iter.GetListSuffix())
+					.replace("@@d", nullToEmptyString(cte_match.variableToValue.get("@@d")));
+			sql.replace(cte_match.start, cte_match.end, replacement);
 		}
-		return sql;
+	}
+
+	private static List<List<Block>> parsePatterns(String[] patterns) {
+		List<List<Block>> parsedPatterns = new ArrayList<List<Block>>();
+		for (String pattern : patterns)
+			parsedPatterns.add(SqlTranslate.parseSearchPattern(pattern));
+		return parsedPatterns;
 	}
 
 	private static String nullToEmptyString(String string) {
@@ -268,6 +369,7 @@ public class BigQuerySparkTranslate {
 	}
 	/**
 	 * Finds complex expressions in a GROUP BY or ORDER BY list and replaces them with references to matching select list expressions.
+	 * The SQL is edited in place.
 	 *
 	 * @param sql
 	 *            - the query to transform
@@ -275,9 +377,8 @@ public class BigQuerySparkTranslate {
 	 *            - pattern to find the SELECTs, @@s is the select list, @@r is the list to convert
 	 * @param list_type
 	 *            - CommaListSeparator.ListType for the list to replace
-	 * @return the query with GROUP BY elements replaced
 	 */
-	private static String bigQueryConvertSelectListReferences(String sql, String select_pattern, CommaListIterator.ListType list_type) {
+	private static void bigQueryConvertSelectListReferences(TokenBuffer sql, String select_pattern, CommaListIterator.ListType list_type) {
 		// Iterates SELECT statements
 		List<Block> select_statement_pattern = SqlTranslate.parseSearchPattern(select_pattern);
 		for (MatchedPattern select_statement_match = SqlTranslate.search(sql, select_statement_pattern,
@@ -285,72 +386,208 @@ public class BigQuerySparkTranslate {
 						select_statement_match.startToken + 1)) {
 			final String select_list = select_statement_match.variableToValue.get("@@s");
 			final String list_to_replace = select_statement_match.variableToValue.get("@@r");
-			String replacement_list = "";
+			final SelectList select_list_index = new SelectList(select_list);
+			StringBuilder replacement_list = new StringBuilder();
 
 			// Iterates the list to replace
 			CommaListIterator list_to_replace_iter = new CommaListIterator(list_to_replace, list_type);
 			for (; !list_to_replace_iter.IsDone(); list_to_replace_iter.Next()) {
 				final String list_expr = list_to_replace_iter.GetExpressionPrefix();
 				final String list_expr_suffix = list_to_replace_iter.GetExpressionSuffix();
-				List<Block> list_expr_pattern = SqlTranslate.parseSearchPattern(list_expr);
-				if (list_to_replace_iter.IsSingleColumnReference()) {
+				final String[] list_expr_tokens = getLiteralPatternTokens(list_expr);
+				int ordinal;
+				if (list_expr_tokens == null) {
+					ordinal = findSelectListReference(select_list, list_expr, list_to_replace_iter);
+				} else if (list_to_replace_iter.IsSingleColumnReference()) {
 					// Copy single column references directly
-					replacement_list = replacement_list + ", " + list_expr + list_expr_suffix;
+					ordinal = -1;
 				} else {
-					// Iterates the SELECT list searching for a matching expression
-					CommaListIterator select_list_iter = new CommaListIterator(select_list, CommaListIterator.ListType.SELECT);
-					boolean found = false;
-					for (int i = 1; !select_list_iter.IsDone(); ++i, select_list_iter.Next()) {
-						final String select_expr = select_list_iter.GetExpressionPrefix();
-						if (SqlTranslate.search(select_expr, list_expr_pattern, 0).start != -1) {
-							found = true;
-							replacement_list = replacement_list + ", " + i + list_expr_suffix;
-							break;
-						}
-					}
-					if (!found) {
-						// No matches. Fall back to copying the expression directly
-						replacement_list = replacement_list + ", " + list_expr + list_expr_suffix;
-					}
+					ordinal = select_list_index.find(list_expr_tokens, list_expr);
+				}
+				replacement_list.append(", ");
+				if (ordinal == -1) {
+					// No matches. Fall back to copying the expression directly
+					replacement_list.append(list_expr);
+				} else {
+					replacement_list.append(ordinal);
 				}
+				replacement_list.append(list_expr_suffix);
 			}
-			replacement_list = list_to_replace_iter.GetListPrefix() + replacement_list.substring(1) + list_to_replace_iter.GetListSuffix();
+			final String replacement = list_to_replace_iter.GetListPrefix() + replacement_list.toString().substring(1)
+					+ list_to_replace_iter.GetListSuffix();
 
 			// Copies everything from the match except for the replacement list
-			final String suffix = sql.substring(select_statement_match.end);
-			sql = sql.substring(0, select_statement_match.start);
+			StringBuilder statement = new StringBuilder();
 			for (int i = 0; i < select_statement_pattern.size(); ++i) {
-				if (sql.length() > 0) {
-					sql += " ";
+				if (select_statement_match.start > 0 || statement.length() > 0) {
+					statement.append(" ");
 				}
 				Block block = select_statement_pattern.get(i);
 				if (block.isVariable) {
 					if (block.text.equals("@@r")) {
-						sql += replacement_list;
+						statement.append(replacement);
 					} else {
-						sql += select_statement_match.variableToValue.get(block.text);
+						statement.append(select_statement_match.variableToValue.get(block.text));
 					}
 				} else {
-					sql += block.text;
+					statement.append(block.text);
 				}
 			}
-			sql += suffix;
+			sql.replace(select_statement_match.start, select_statement_match.end, statement.toString());
 		}
+	}
 
-		return sql;
+	/**
+	 * Returns the lower case texts of the tokens of an expression, if searching with the expression as search pattern would
+	 * look for exactly these tokens. Returns null if the expression has no tokens, or has tokens that would be parsed as
+	 * pattern variables.
+	 */
+	private static String[] getLiteralPatternTokens(String expression) {
+		SqlTokens tokens;
+		try {
+			tokens = new SqlTokens(expression.toLowerCase());
+		} catch (RuntimeException e) {
+			return null;
+		}
+		if (tokens.getTokenCount() == 0)
+			return null;
+		String[] texts = new String[tokens.getTokenCount()];
+		for (int i = 0; i < texts.length; i++) {
+			if (tokens.startsWith(i, '@'))
+				return null;
+			texts[i] = tokens.getText(i);
+		}
+		return texts;
 	}
 
 	/**
-	 * Lower cases everything but string literals
+	 * Finds the first SELECT list expression that contains the GROUP BY or ORDER BY expression, by using the expression as
+	 * search pattern.
+	 *
+	 * @return The ordinal of the SELECT expression, or -1 if none contains the expression, or the expression is a single
+	 *         column reference.
+	 */
+	private static int findSelectListReference(String select_list, String list_expr, CommaListIterator list_to_replace_iter) {
+		List<Block> list_expr_pattern = SqlTranslate.parseSearchPattern(list_expr);
+		if (list_to_replace_iter.IsSingleColumnReference()) {
+			return -1;
+		}
+		// Iterates the SELECT list searching for a matching expression
+		CommaListIterator select_list_iter = new CommaListIterator(select_list, CommaListIterator.ListType.SELECT);
+		for (int i = 1; !select_list_iter.IsDone(); ++i, select_list_iter.Next()) {
+			final String select_expr = select_list_iter.GetExpressionPrefix();
+			if (SqlTranslate.search(select_expr, list_expr_pattern, 0).start != -1) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Lower cases everything but string literals and parameters. Tokens are found as by StringUtils.tokenizeSql, but
+	 * lower cased as they are found, so the SQL is scanned and copied only once.
 	 *
 	 * @param sql - the query to translate
 	 * @return the query after translation
 	 */
 	private static String bigQueryLowerCase(String sql) {
-		List<StringUtils.Token> tokens = StringUtils.tokenizeSql(sql);
-		for (StringUtils.Token token : tokens) {
-			if (!token.inQuotes && !token.text.startsWith("@")) {
-				sql = sql.substring(0, token.start) + token.text.toLowerCase() + sql.substring(token.end);
+		boolean isSimpleLocale = !TokenBuffer.isContextSensitiveLocale();
+		StringBuilder result = new StringBuilder(sql.length());
+		int copied = 0; // Everything before this position has been copied to the result
+		int start = 0;
+		int cursor = 0;
+		boolean commentType1 = false; // Type 1: -- ... end of line
+		boolean commentType2 = false; // Type 2: /* .. */
+		boolean inSingleQuotes = false;
+		boolean inDoubleQuotes = false;
+		for (; cursor < sql.length(); cursor++) {
+			char ch = sql.charAt(cursor);
+			if (commentType1) {
+				if (ch == '\n') {
+					commentType1 = false;
+					start = cursor + 1;
+				}
+			} else if (commentType2) {
+				if (ch == '/' && cursor > 0 && sql.charAt(cursor - 1) == '*') {
+					commentType2 = false;
+					start = cursor + 1;
+				}
+			} else if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '@') {
+				if (cursor > start && !inSingleQuotes && !inDoubleQuotes && sql.charAt(start) != '@') {
+					result.append(sql, copied, start);
+					if (!appendLowerCase(result, sql, start, cursor, isSimpleLocale))
+						return bigQueryLowerCaseByToken(sql);
+					copied = cursor;
+				}
+				if (ch == '-' && cursor < sql.length() - 1 && sql.charAt(cursor + 1) == '-' && !inSingleQuotes && !inDoubleQuotes
+						&& (sql.length() - cursor < 6 || !sql.startsWith(StringUtils.HINT_KEY_WORD, cursor + 2))) {
+					commentType1 = true;
+				} else if (ch == '/' && cursor < sql.length() - 1 && sql.charAt(cursor + 1) == '*' && !inSingleQuotes && !inDoubleQuotes) {
+					commentType2 = true;
+				} else if (!Character.isWhitespace(ch)) {
+					if (!inSingleQuotes && !inDoubleQuotes) {
+						result.append(sql, copied, cursor);
+						if (!appendLowerCase(result, sql, cursor, cursor + 1, isSimpleLocale))
+							return bigQueryLowerCaseByToken(sql);
+						copied = cursor + 1;
+					}
+					if (ch == '\'' && !inDoubleQuotes) {
+						inSingleQuotes = !inSingleQuotes;
+					}
+					if (ch == '"' && !inSingleQuotes) {
+						inDoubleQuotes = !inDoubleQuotes;
+					}
+				}
+				start = cursor + 1;
+			}
+		}
+		if (cursor > start && !commentType1 && !commentType2 && !inSingleQuotes && !inDoubleQuotes && sql.charAt(start) != '@') {
+			result.append(sql, copied, start);
+			if (!appendLowerCase(result, sql, start, cursor, isSimpleLocale))
+				return bigQueryLowerCaseByToken(sql);
+			copied = cursor;
+		}
+		result.append(sql, copied, sql.length());
+		return result.toString();
+	}
+
+	/**
+	 * Appends the lower case of part of the SQL, lower cased as a string on its own.
+	 *
+	 * @return false if lower casing changes the length, so the result would not be the same as that of
+	 *         bigQueryLowerCaseByToken.
+	 */
+	private static boolean appendLowerCase(StringBuilder result, String sql, int start, int end, boolean isSimpleLocale) {
+		if (isSimpleLocale) {
+			int i = start;
+			while (i < end && sql.charAt(i) < 128)
+				i++;
+			if (i == end) {
+				for (i = start; i < end; i++) {
+					char ch = sql.charAt(i);
+					result.append(ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch);
+				}
+				return true;
+			}
+		}
+		String lowerCase = sql.substring(start, end).toLowerCase();
+		if (lowerCase.length() != end - start)
+			return false;
+		result.append(lowerCase);
+		return true;
+	}
+
+	/**
+	 * Lower cases everything but string literals, one token at a time. When lower casing a token changes its length, the
+	 * positions of later tokens no longer match the SQL. This has always been the case, so the result is kept the same.
+	 */
+	private static String bigQueryLowerCaseByToken(String sql) {
+		SqlTokens tokens = new SqlTokens(sql);
+		String original = sql;
+		for (int token = 0; token < tokens.getTokenCount(); token++) {
+			if (!tokens.isInQuotes(token) && !tokens.startsWith(token, '@')) {
+				sql = sql.substring(0, tokens.getStart(token)) + original.substring(tokens.getStart(token), tokens.getEnd(token)).toLowerCase()
+						+ sql.substring(tokens.getEnd(token));
 			}
 		}
 		return sql;
@@ -365,22 +602,22 @@ public class BigQuerySparkTranslate {
 	 */
 	public static String translatebigQuery(String sql) {
 		sql = bigQueryLowerCase(sql);
-		sql = bigQueryAliasCommonTableExpressions(sql, "with @@a (@@b) as (select @@c from @@d)");
-		sql = bigQueryAliasCommonTableExpressions(sql, "with @@a (@@b) as (select @@c union @@d)");
-		sql = bigQueryAliasCommonTableExpressions(sql, "with @@a (@@b) as (select @@c)");
-		sql = bigQueryAliasCommonTableExpressions(sql, ", @@a (@@b) as (select @@c from @@d)");
+		TokenBuffer buffer = new TokenBuffer(sql);
+		// The patterns are applied one after the other, because for nested common table expressions the order decides the result:
+		for (int i = 0; i < CTE_PATTERNS.length; i++)
+			bigQueryAliasCommonTableExpressions(buffer, CTE_PATTERNS[i], PARSED_CTE_PATTERNS.get(i));
 
 		String groupByReferences = "select @@s from @@b group by @@r";
-		sql = bigQueryConvertSelectListReferences(sql, groupByReferences + ";", CommaListIterator.ListType.GROUP_BY);
-		sql = bigQueryConvertSelectListReferences(sql, groupByReferences + ")", CommaListIterator.ListType.GROUP_BY);
-		sql = bigQueryConvertSelectListReferences(sql, groupByReferences + " having", CommaListIterator.ListType.GROUP_BY);
-		sql = bigQueryConvertSelectListReferences(sql, groupByReferences + " order by", CommaListIterator.ListType.GROUP_BY);
+		bigQueryConvertSelectListReferences(buffer, groupByReferences + ";", CommaListIterator.ListType.GROUP_BY);
+		bigQueryConvertSelectListReferences(buffer, groupByReferences + ")", CommaListIterator.ListType.GROUP_BY);
+		bigQueryConvertSelectListReferences(buffer, groupByReferences + " having", CommaListIterator.ListType.GROUP_BY);
+		bigQueryConvertSelectListReferences(buffer, groupByReferences + " order by", CommaListIterator.ListType.GROUP_BY);
 
 		String orderBy = "select @@s from @@b order by @@r";
-		sql = bigQueryConvertSelectListReferences(sql, orderBy + ";", CommaListIterator.ListType.ORDER_BY);
-		sql = bigQueryConvertSelectListReferences(sql, orderBy + ")", CommaListIterator.ListType.ORDER_BY);
+		bigQueryConvertSelectListReferences(buffer, orderBy + ";", CommaListIterator.ListType.ORDER_BY);
+		bigQueryConvertSelectListReferences(buffer, orderBy + ")", CommaListIterator.ListType.ORDER_BY);
 
-		return sql;
+		return buffer.toString();
 	}
 
 	// Spark functions -------
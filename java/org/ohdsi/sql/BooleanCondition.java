@@ -0,0 +1,607 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Stack;
+
+/**
+ * The condition of an if-then-else block, for instance "&#64;a == 1 & (&#64;b | !&#64;c)", with the parameters filled in.
+ * The condition is parsed once into a tree when it is created: each part in parentheses becomes an expression whose nested
+ * parts are slots for their results. Evaluating the condition evaluates each part exactly once, innermost first, without
+ * creating any strings.<br/>
+ * <br/>
+ * The grammar is the one SqlRender has always used: a part in parentheses is evaluated unless it follows 'in'. A condition
+ * is split on '&' first, and only otherwise on '|'. A part is 'true', 'false', '1', '0', or their negation with '!', a
+ * comparison with '==', '!=' or '<>', or an 'in' with a list in parentheses.<br/>
+ * <br/>
+ * For compatibility, two kinds of conditions are still evaluated by replacing each part in parentheses by its result in
+ * the text: conditions where a part in parentheses starts right after another, because that rewriting makes the second
+ * part disappear, and conditions that change length when converted to lower case.
+ */
+public class BooleanCondition {
+	private String			condition;
+	private boolean			isRewritten;
+	// The parts in parentheses to evaluate, in order of their closing parenthesis:
+	private int[]			starts;
+	private int[]			ends;
+	// For each part, and for the condition as a whole (the last entry), the parts directly nested in it:
+	private int[][]			nested;
+	// For each part, and for the condition as a whole (the last entry), the parsed expression:
+	private Expression[]	expressions;
+
+	private static class Span {
+		public int		start;
+		public int		end;
+		public boolean	valid;
+
+		public Span(int start, int end) {
+			this.start = start;
+			this.end = end;
+			this.valid = true;
+		}
+	}
+
+	private static List<Span> findParentheses(String str) {
+		Stack<Integer> starts = new Stack<Integer>();
+		List<Span> spans = new ArrayList<Span>();
+		for (int i = 0; i < str.length(); i++) {
+			if (str.charAt(i) == '(') {
+				starts.push(i);
+			} else if (str.charAt(i) == ')') {
+				if (!starts.empty()) {
+					spans.add(new Span(starts.pop(), i + 1));
+				}
+			}
+		}
+		return spans;
+	}
+
+	/**
+	 * @param condition
+	 *            The condition, with the parameters filled in
+	 */
+	public BooleanCondition(String condition) {
+		this.condition = condition.trim();
+		// Positions are compared between the condition and its lower case, so these must have the same length:
+		String lowerCaseCondition = this.condition.toLowerCase();
+		if (lowerCaseCondition.length() != this.condition.length()) {
+			isRewritten = true;
+			return;
+		}
+		List<Span> spans = findParentheses(this.condition);
+		List<Span> evaluated = new ArrayList<Span>();
+		for (Span span : spans)
+			if (!precededByIn(span.start, lowerCaseCondition))
+				evaluated.add(span);
+		starts = new int[evaluated.size()];
+		ends = new int[evaluated.size()];
+		for (int i = 0; i < starts.length; i++) {
+			starts[i] = evaluated.get(i).start;
+			ends[i] = evaluated.get(i).end;
+		}
+		// Once a part is replaced by its result, a part starting right after it can no longer be found:
+		boolean[] isEnd = new boolean[this.condition.length() + 1];
+		for (int i = 0; i < ends.length; i++)
+			isEnd[ends[i]] = true;
+		for (Span span : spans)
+			if (isEnd[span.start]) {
+				isRewritten = true;
+				return;
+			}
+		findNested();
+		expressions = new Expression[starts.length + 1];
+		for (int i = 0; i <= starts.length; i++) {
+			Text text = i < starts.length
+					? new Text(this.condition, lowerCaseCondition, starts[i] + 1, ends[i] - 1, nested[i], starts, ends)
+					: new Text(this.condition, lowerCaseCondition, 0, this.condition.length(), nested[i], starts, ends);
+			expressions[i] = parseCondition(text, 0, text.chars.length);
+		}
+	}
+
+	/**
+	 * For each part, finds the parts whose closest enclosing part it is. Parts are nested properly, so going through them in
+	 * order of their start, the enclosing part is always on the stack.
+	 */
+	private void findNested() {
+		Integer[] order = new Integer[starts.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return starts[o1] - starts[o2];
+			}
+		});
+		List<List<Integer>> nestedLists = new ArrayList<List<Integer>>();
+		for (int i = 0; i <= starts.length; i++)
+			nestedLists.add(new ArrayList<Integer>());
+		Stack<Integer> enclosing = new Stack<Integer>();
+		for (int part : order) {
+			while (!enclosing.empty() && ends[enclosing.peek()] <= starts[part])
+				enclosing.pop();
+			nestedLists.get(enclosing.empty() ? starts.length : enclosing.peek()).add(part);
+			enclosing.push(part);
+		}
+		nested = new int[nestedLists.size()][];
+		for (int i = 0; i < nested.length; i++) {
+			nested[i] = new int[nestedLists.get(i).size()];
+			for (int j = 0; j < nested[i].length; j++)
+				nested[i][j] = nestedLists.get(i).get(j);
+		}
+	}
+
+	public boolean evaluate() {
+		if (isRewritten)
+			return evaluateByRewriting(condition);
+		boolean[] results = new boolean[starts.length];
+		for (int i = 0; i < starts.length; i++)
+			results[i] = expressions[i].evaluate(results);
+		return expressions[starts.length].evaluate(results);
+	}
+
+	/**
+	 * The text of a part in parentheses, or of the whole condition, with the parts nested in it replaced by slots. A slot is
+	 * a single character, '1' or '0' depending on the result of the nested part.
+	 */
+	private static class Text {
+		public char[]	chars;
+		public char[]	lowerChars;
+		// For each character, the part whose result it is, or -1:
+		public int[]	slots;
+
+		public Text(String condition, String lowerCaseCondition, int start, int end, int[] nestedParts, int[] starts, int[] ends) {
+			int length = end - start;
+			for (int part : nestedParts)
+				length -= ends[part] - starts[part] - 1;
+			chars = new char[length];
+			lowerChars = new char[length];
+			slots = new int[length];
+			int cursor = start;
+			int position = 0;
+			for (int part = 0; part <= nestedParts.length; part++) {
+				int copyEnd = part < nestedParts.length ? starts[nestedParts[part]] : end;
+				for (; cursor < copyEnd; cursor++, position++) {
+					chars[position] = condition.charAt(cursor);
+					lowerChars[position] = lowerCaseCondition.charAt(cursor);
+					slots[position] = -1;
+				}
+				if (part < nestedParts.length) {
+					chars[position] = '1';
+					lowerChars[position] = '1';
+					slots[position] = nestedParts[part];
+					position++;
+					cursor = ends[nestedParts[part]];
+				}
+			}
+		}
+
+		public char charAt(int position, boolean[] results) {
+			if (slots[position] == -1)
+				return chars[position];
+			return results[slots[position]] ? '1' : '0';
+		}
+
+		public boolean isSlot(int position) {
+			return slots[position] != -1;
+		}
+
+		public String substring(int start, int end, boolean[] results) {
+			StringBuilder result = new StringBuilder(end - start);
+			for (int i = start; i < end; i++)
+				result.append(charAt(i, results));
+			return result.toString();
+		}
+	}
+
+	private static abstract class Expression {
+		public abstract boolean evaluate(boolean[] results);
+	}
+
+	private static class Constant extends Expression {
+		private boolean	value;
+
+		public Constant(boolean value) {
+			this.value = value;
+		}
+
+		@Override
+		public boolean evaluate(boolean[] results) {
+			return value;
+		}
+	}
+
+	private static class Slot extends Expression {
+		private int		part;
+		private boolean	isNegated;
+
+		public Slot(int part, boolean isNegated) {
+			this.part = part;
+			this.isNegated = isNegated;
+		}
+
+		@Override
+		public boolean evaluate(boolean[] results) {
+			return results[part] != isNegated;
+		}
+	}
+
+	/**
+	 * All operands must be true ('&'), or any operand must be true ('|'). Operands are evaluated from left to right until the
+	 * result is known.
+	 */
+	private static class Junction extends Expression {
+		private Expression[]	operands;
+		private boolean			isAnd;
+
+		public Junction(Expression[] operands, boolean isAnd) {
+			this.operands = operands;
+			this.isAnd = isAnd;
+		}
+
+		@Override
+		public boolean evaluate(boolean[] results) {
+			for (Expression operand : operands)
+				if (operand.evaluate(results) != isAnd)
+					return !isAnd;
+			return isAnd;
+		}
+	}
+
+	private static class Comparison extends Expression {
+		private Text	text;
+		private int		leftStart;
+		private int		leftEnd;
+		private int		rightStart;
+		private int		rightEnd;
+		private boolean	isEquals;
+
+		public Comparison(Text text, int[] left, int[] right, boolean isEquals) {
+			this.text = text;
+			leftStart = left[0];
+			leftEnd = left[1];
+			rightStart = right[0];
+			rightEnd = right[1];
+			this.isEquals = isEquals;
+		}
+
+		@Override
+		public boolean evaluate(boolean[] results) {
+			return textEquals(text, leftStart, leftEnd, rightStart, rightEnd, results) == isEquals;
+		}
+	}
+
+	private static class InList extends Expression {
+		private Text	text;
+		private int		leftStart;
+		private int		leftEnd;
+		private int[]	itemStarts;
+		private int[]	itemEnds;
+
+		public InList(Text text, int[] left, int[] itemStarts, int[] itemEnds) {
+			this.text = text;
+			leftStart = left[0];
+			leftEnd = left[1];
+			this.itemStarts = itemStarts;
+			this.itemEnds = itemEnds;
+		}
+
+		@Override
+		public boolean evaluate(boolean[] results) {
+			for (int i = 0; i < itemStarts.length; i++)
+				if (textEquals(text, leftStart, leftEnd, itemStarts[i], itemEnds[i], results))
+					return true;
+			return false;
+		}
+	}
+
+	/**
+	 * A part that can't be parsed. It only fails when it is evaluated, so it does no harm when the result is already known.
+	 */
+	private static class Invalid extends Expression {
+		private Text	text;
+		private int		start;
+		private int		end;
+
+		public Invalid(Text text, int start, int end) {
+			this.text = text;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public boolean evaluate(boolean[] results) {
+			throw new RuntimeException("Error parsing boolean condition: \"" + text.substring(start, end, results) + "\"");
+		}
+	}
+
+	private static boolean textEquals(Text text, int start1, int end1, int start2, int end2, boolean[] results) {
+		if (end1 - start1 != end2 - start2)
+			return false;
+		for (int i = 0; i < end1 - start1; i++)
+			if (text.charAt(start1 + i, results) != text.charAt(start2 + i, results))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Parses the text between start and end the way evaluateBooleanCondition evaluates it.
+	 */
+	private static Expression parseCondition(Text text, int start, int end) {
+		int[] trimmed = trim(text, start, end);
+		for (char operator : new char[] { '&', '|' }) {
+			int[][] parts = split(text, trimmed[0], trimmed[1], operator);
+			if (parts != null) {
+				Expression[] operands = new Expression[parts.length];
+				for (int i = 0; i < parts.length; i++)
+					operands[i] = parsePrimitiveCondition(text, parts[i][0], parts[i][1]);
+				return new Junction(operands, operator == '&');
+			}
+		}
+		return parsePrimitiveCondition(text, trimmed[0], trimmed[1]);
+	}
+
+	/**
+	 * Parses the text between start and end the way evaluatePrimitiveCondition evaluates it.
+	 */
+	private static Expression parsePrimitiveCondition(Text text, int start, int end) {
+		int[] trimmed = trim(text, start, end);
+		start = trimmed[0];
+		end = trimmed[1];
+		if (end - start == 1 && text.isSlot(start))
+			return new Slot(text.slots[start], false);
+		if (end - start == 2 && text.lowerChars[start] == '!' && text.isSlot(start + 1))
+			return new Slot(text.slots[start + 1], true);
+		for (String constant : new String[] { "false", "0", "!true", "!1" })
+			if (regionEquals(text.lowerChars, start, end, constant))
+				return new Constant(false);
+		for (String constant : new String[] { "true", "1", "!false", "!0" })
+			if (regionEquals(text.lowerChars, start, end, constant))
+				return new Constant(true);
+
+		int found = indexOf(text.chars, start, end, "==");
+		if (found != -1)
+			return new Comparison(text, removeParentheses(text, trim(text, start, found)), removeParentheses(text, trim(text, found + 2, end)), true);
+		found = indexOf(text.chars, start, end, "!=");
+		if (found == -1)
+			found = indexOf(text.chars, start, end, "<>");
+		if (found != -1)
+			return new Comparison(text, removeParentheses(text, trim(text, start, found)), removeParentheses(text, trim(text, found + 2, end)), false);
+		found = indexOf(text.lowerChars, start, end, " in ");
+		if (found != -1) {
+			int[] left = removeParentheses(text, trim(text, start, found));
+			int[] right = trim(text, found + 4, end);
+			if (right[1] - right[0] > 2 && text.chars[right[0]] == '(' && text.chars[right[1] - 1] == ')') {
+				int[][] items = split(text, right[0] + 1, right[1] - 1, ',');
+				if (items == null)
+					items = new int[][] { { right[0] + 1, right[1] - 1 } };
+				int[] itemStarts = new int[items.length];
+				int[] itemEnds = new int[items.length];
+				for (int i = 0; i < items.length; i++) {
+					int[] item = removeParentheses(text, items[i]);
+					itemStarts[i] = item[0];
+					itemEnds[i] = item[1];
+				}
+				return new InList(text, left, itemStarts, itemEnds);
+			}
+		}
+		return new Invalid(text, start, end);
+	}
+
+	/**
+	 * Trims the text between start and end the way String.trim() does.
+	 */
+	private static int[] trim(Text text, int start, int end) {
+		while (start < end && text.chars[start] <= ' ')
+			start++;
+		while (end > start && text.chars[end - 1] <= ' ')
+			end--;
+		return new int[] { start, end };
+	}
+
+	/**
+	 * Removes quotes around the text the way SqlRender.removeParentheses() does.
+	 */
+	private static int[] removeParentheses(Text text, int[] range) {
+		int start = range[0];
+		int end = range[1];
+		if (end - start > 1 && ((text.chars[start] == '\'' && text.chars[end - 1] == '\'') || (text.chars[start] == '"' && text.chars[end - 1] == '"')))
+			return new int[] { start + 1, end - 1 };
+		return range;
+	}
+
+	/**
+	 * Splits the text between start and end the way String.split() does, so trailing empty parts are dropped.
+	 *
+	 * @return The start and end of each part, or null if the separator does not occur
+	 */
+	private static int[][] split(Text text, int start, int end, char separator) {
+		List<int[]> parts = new ArrayList<int[]>();
+		int partStart = start;
+		for (int i = start; i < end; i++)
+			if (text.chars[i] == separator && !text.isSlot(i)) {
+				parts.add(new int[] { partStart, i });
+				partStart = i + 1;
+			}
+		if (parts.isEmpty())
+			return null;
+		parts.add(new int[] { partStart, end });
+		int count = parts.size();
+		while (count > 0 && parts.get(count - 1)[0] == parts.get(count - 1)[1])
+			count--;
+		return parts.subList(0, count).toArray(new int[count][]);
+	}
+
+	private static int indexOf(char[] chars, int start, int end, String string) {
+		for (int i = start; i <= end - string.length(); i++)
+			if (regionEquals(chars, i, i + string.length(), string))
+				return i;
+		return -1;
+	}
+
+	private static boolean regionEquals(char[] chars, int start, int end, String string) {
+		if (end - start != string.length())
+			return false;
+		for (int i = 0; i < string.length(); i++)
+			if (chars[start + i] != string.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Replaces each part in parentheses by its result in the condition, and then evaluates the rest. This is only used for
+	 * conditions where that rewriting has effects that cannot be reproduced otherwise.
+	 */
+	private static boolean evaluateByRewriting(String str) {
+		str = str.trim();
+		List<Span> spans = findParentheses(str);
+		// Spans are in order of closing parenthesis, so if we go from first to last we'll always process nested parentheses first
+		for (Span span : spans)
+			if (!precededByIn(span.start, str.toLowerCase())) {
+				boolean evaluation = evaluateBooleanCondition(str.substring(span.start + 1, span.end - 1));
+				str = StringUtils.replaceCharAt(str, span.start, evaluation ? '1' : '0');
+				str = replace(str, spans, span.start, span.end, span.start, span.start);
+			}
+		return evaluateBooleanCondition(str);
+	}
+
+	private static boolean evaluateBooleanCondition(String str) {
+		str = str.trim();
+		int found = str.indexOf("&");
+		if (found != -1) {
+			String[] parts = str.split("&");
+			for (String part : parts)
+				if (!evaluatePrimitiveCondition(part))
+					return false;
+
+			return true;
+		}
+		found = str.indexOf("|");
+		if (found != -1) {
+			String[] parts = str.split("\\|");
+			for (String part : parts)
+				if (evaluatePrimitiveCondition(part))
+					return true;
+			return false;
+		}
+		return evaluatePrimitiveCondition(str);
+	}
+
+	/**
+	 * Checks whether the position is preceded by the word 'in'.
+	 *
+	 * @param start
+	 *            The position
+	 * @param str
+	 *            The condition in lower case
+	 */
+	private static boolean precededByIn(int start, String str) {
+		int matched = 0;
+		for (int i = start - 1; i >= 0; i--) {
+			if (!Character.isWhitespace(str.charAt(i))) {
+				if (matched == 0 && str.charAt(i) == 'n')
+					matched++;
+				else if (matched == 1 && str.charAt(i) == 'i')
+					matched++;
+				else
+					return false;
+			} else if (matched == 2)
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean evaluatePrimitiveCondition(String str) {
+		str = str.trim();
+		String str_lc = str.toLowerCase();
+		if (str_lc.equals("false") || str_lc.equals("0") || str_lc.equals("!true") || str_lc.equals("!1"))
+			return false;
+		if (str_lc.equals("true") || str_lc.equals("1") || str_lc.equals("!false") || str_lc.equals("!0"))
+			return true;
+
+		int found = str.indexOf("==");
+		if (found != -1) {
+			String left = str.substring(0, found);
+			left = left.trim();
+			left = SqlRender.removeParentheses(left);
+			String right = str.substring(found + 2, str.length());
+			right = right.trim();
+			right = SqlRender.removeParentheses(right);
+			return (left.equals(right));
+		}
+		found = str.indexOf("!=");
+		if (found == -1)
+			found = str.indexOf("<>");
+		if (found != -1) {
+			String left = str.substring(0, found);
+			left = left.trim();
+			left = SqlRender.removeParentheses(left);
+			String right = str.substring(found + 2, str.length());
+			right = right.trim();
+			right = SqlRender.removeParentheses(right);
+			return (!left.equals(right));
+		}
+		found = str_lc.indexOf(" in ");
+		if (found != -1) {
+			String left = str.substring(0, found);
+			left = left.trim();
+			left = SqlRender.removeParentheses(left);
+			String right = str.substring(found + 4, str.length());
+			right = right.trim();
+			if (right.length() > 2 && right.charAt(0) == '(' && right.charAt(right.length() - 1) == ')') {
+				right = right.substring(1, right.length() - 1);
+				String[] parts = right.split(",");
+				for (String part : parts) {
+					String partString = SqlRender.removeParentheses(part);
+					if (left.equals(partString))
+						return true;
+				}
+				return false;
+			}
+		}
+		throw new RuntimeException("Error parsing boolean condition: \"" + str + "\"");
+	}
+
+	private static String replace(String str, List<Span> spans, int toReplaceStart, int toReplaceEnd, int replaceWithStart, int replaceWithEnd) {
+		String replaceWithString = str.substring(replaceWithStart, replaceWithEnd + 1);
+		str = StringUtils.replace(str, toReplaceStart, toReplaceEnd, replaceWithString);
+		for (Span span : spans)
+			if (span.valid) {
+				if (span.start > toReplaceStart) {
+					if (span.start >= replaceWithStart && span.start < replaceWithEnd) {
+						int delta = toReplaceStart - replaceWithStart;
+						span.start += delta;
+						span.end += delta;
+					} else if (span.start > toReplaceEnd) {
+						int delta = toReplaceStart - toReplaceEnd + replaceWithString.length();
+						span.start += delta;
+						span.end += delta;
+					} else {
+						span.valid = false;
+					}
+				} else if (span.end > toReplaceEnd) {
+					int delta = toReplaceStart - toReplaceEnd + replaceWithString.length();
+					span.end += delta;
+				}
+			}
+		return str;
+	}
+
+}
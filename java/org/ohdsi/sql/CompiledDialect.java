@@ -0,0 +1,274 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ohdsi.sql.SqlTranslate.Block;
+
+/**
+ * The replacement patterns of a single target dialect, parsed once when the patterns are loaded so that translating a
+ * script doesn't have to parse every search pattern again.
+ */
+public class CompiledDialect {
+	public static final String	SESSION_ID_PLACEHOLDER	= "%session_id%";
+	public static final String	TEMP_PREFIX_PLACEHOLDER	= "%temp_prefix%";
+
+	private String				name;
+	private List<Rule>			rules					= new ArrayList<Rule>();
+
+	// Built on first use. Building it twice when two threads get there at the same time does no harm:
+	private volatile RulePrefixAutomaton prefixAutomaton;
+	private volatile Boolean			hasRulesSpanningStatements;
+
+	protected static class Rule {
+		public String				searchPattern;
+		public List<Block>			parsedPattern;
+		public String[]				requiredTokens;
+		public ReplacementTemplate	replacement;
+		public String				parseError;
+	}
+
+	/**
+	 * A replacement pattern split into literal text and slots for the pattern variables, the session ID, and the temp
+	 * prefix, so the slots can be filled in when a match is replaced.
+	 */
+	protected static class ReplacementTemplate {
+		private static final int	LITERAL		= 0;
+		private static final int	VARIABLE	= 1;
+		private static final int	SESSION_ID	= 2;
+		private static final int	TEMP_PREFIX	= 3;
+
+		private String				pattern;
+		private int[]				types;
+		private String[]			texts;
+
+		public ReplacementTemplate(String pattern, List<Block> parsedPattern) {
+			this.pattern = pattern;
+			List<String> variables = new ArrayList<String>();
+			if (parsedPattern != null)
+				for (Block block : parsedPattern)
+					if (block.isVariable)
+						variables.add(block.text);
+			List<Integer> typeList = new ArrayList<Integer>();
+			List<String> textList = new ArrayList<String>();
+			int literalStart = 0;
+			int cursor = 0;
+			while (cursor < pattern.length()) {
+				int type = LITERAL;
+				String text = null;
+				if (pattern.startsWith(SESSION_ID_PLACEHOLDER, cursor)) {
+					type = SESSION_ID;
+					text = SESSION_ID_PLACEHOLDER;
+				} else if (pattern.startsWith(TEMP_PREFIX_PLACEHOLDER, cursor)) {
+					type = TEMP_PREFIX;
+					text = TEMP_PREFIX_PLACEHOLDER;
+				} else if (pattern.startsWith("@@", cursor)) {
+					// Longest variable name wins, so @@pid is not mistaken for @@p followed by 'id':
+					for (String variable : variables)
+						if (pattern.startsWith(variable, cursor) && (text == null || variable.length() > text.length())) {
+							type = VARIABLE;
+							text = variable;
+						}
+				}
+				if (type == LITERAL) {
+					cursor++;
+				} else {
+					if (cursor > literalStart) {
+						typeList.add(LITERAL);
+						textList.add(pattern.substring(literalStart, cursor));
+					}
+					typeList.add(type);
+					textList.add(text);
+					cursor += text.length();
+					literalStart = cursor;
+				}
+			}
+			if (cursor > literalStart) {
+				typeList.add(LITERAL);
+				textList.add(pattern.substring(literalStart, cursor));
+			}
+			types = new int[typeList.size()];
+			for (int i = 0; i < types.length; i++)
+				types[i] = typeList.get(i);
+			texts = textList.toArray(new String[textList.size()]);
+		}
+
+		public boolean startsWithVariable() {
+			return pattern.startsWith("@@");
+		}
+
+		public String fill(Map<String, String> variableToValue, String sessionId, String tempPrefix) {
+			StringBuilder result = new StringBuilder();
+			for (int i = 0; i < types.length; i++) {
+				switch (types[i]) {
+					case VARIABLE:
+						// A variable without a value is left in place, as replacing the variables one by one did:
+						String value = variableToValue.get(texts[i]);
+						result.append(value == null ? texts[i] : value);
+						break;
+					case SESSION_ID:
+						result.append(sessionId);
+						break;
+					case TEMP_PREFIX:
+						result.append(tempPrefix);
+						break;
+					default:
+						result.append(texts[i]);
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	public CompiledDialect(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Adds a rule to the end of the list of rules. The search pattern is parsed immediately. If parsing fails, the error is
+	 * kept and thrown when the rule is used, so a bad pattern only affects translation to this dialect.
+	 *
+	 * @param searchPattern
+	 *            The search pattern, with variables prefixed by &#64;&#64;
+	 * @param replacePattern
+	 *            The replacement pattern, with variables prefixed by &#64;&#64;
+	 */
+	public void addRule(String searchPattern, String replacePattern) {
+		Rule rule = new Rule();
+		rule.searchPattern = searchPattern;
+		try {
+			rule.parsedPattern = SqlTranslate.parseSearchPattern(searchPattern);
+			rule.requiredTokens = getRequiredTokens(rule.parsedPattern);
+		} catch (RuntimeException e) {
+			// Only the message is kept, so each translation throws its own exception:
+			rule.parseError = e.getMessage() == null ? e.toString() : e.getMessage();
+		}
+		rule.replacement = new ReplacementTemplate(replacePattern, rule.parsedPattern);
+		rules.add(rule);
+		prefixAutomaton = null;
+		hasRulesSpanningStatements = null;
+	}
+
+	/**
+	 * The texts of the literal tokens in a search pattern. A pattern can only match SQL that contains all of them.
+	 */
+	private static String[] getRequiredTokens(List<Block> parsedPattern) {
+		Set<String> requiredTokens = new LinkedHashSet<String>();
+		for (Block block : parsedPattern)
+			if (!block.isVariable)
+				requiredTokens.add(block.text);
+		return requiredTokens.toArray(new String[requiredTokens.size()]);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Returns the automaton over the prefixes of all rules. It is built the first time it is needed.
+	 */
+	public RulePrefixAutomaton getPrefixAutomaton() {
+		RulePrefixAutomaton automaton = prefixAutomaton;
+		if (automaton == null) {
+			automaton = new RulePrefixAutomaton(rules);
+			prefixAutomaton = automaton;
+		}
+		return automaton;
+	}
+
+	/**
+	 * Returns true if any rule could match across the end of a statement (as split by StatementChunks), so a script in this
+	 * dialect can't be translated statement by statement. This is the case for rules that can't be parsed, rules with a
+	 * semicolon that is not at the end of the pattern, and rules with a regex variable that is matched up to the end of the
+	 * SQL or back to its start, unless the regular expression can't match a line break.
+	 */
+	public boolean hasRulesSpanningStatements() {
+		Boolean result = hasRulesSpanningStatements;
+		if (result == null) {
+			result = false;
+			for (Rule rule : rules)
+				if (canSpanStatements(rule))
+					result = true;
+			hasRulesSpanningStatements = result;
+		}
+		return result;
+	}
+
+	private static boolean canSpanStatements(Rule rule) {
+		if (rule.parseError != null)
+			return true;
+		List<Block> blocks = rule.parsedPattern;
+		for (int i = 0; i < blocks.size(); i++) {
+			Block block = blocks.get(i);
+			if (!block.isVariable && block.text.equals(";") && i < blocks.size() - 1)
+				return true;
+			// A regex variable between two literal tokens is only matched against the text between them:
+			if (block.regEx != null && (i == 0 || i == blocks.size() - 1 || blocks.get(i + 1).isVariable)
+					&& canMatchLineBreak(block.regEx))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Conservatively checks whether a regular expression could match a line break. Only literal characters, escaped
+	 * punctuation, \d, \w, \S, \b, and character classes made of those (or negated classes containing \s) are
+	 * considered safe.
+	 */
+	private static boolean canMatchLineBreak(String regEx) {
+		boolean inClass = false;
+		boolean negatedClass = false;
+		boolean classHasWhiteSpace = false;
+		for (int i = 0; i < regEx.length(); i++) {
+			char ch = regEx.charAt(i);
+			if (ch == '\\') {
+				if (++i == regEx.length())
+					return true;
+				char escaped = regEx.charAt(i);
+				if (escaped == 's' && negatedClass && inClass)
+					classHasWhiteSpace = true;
+				else if (Character.isLetterOrDigit(escaped) && "dwSbB".indexOf(escaped) == -1)
+					return true;
+			} else if (inClass) {
+				if (ch == '[')
+					return true;
+				if (ch == ']') {
+					if (negatedClass && !classHasWhiteSpace)
+						return true;
+					inClass = false;
+				}
+			} else if (ch == '[') {
+				inClass = true;
+				negatedClass = i + 1 < regEx.length() && regEx.charAt(i + 1) == '^';
+				classHasWhiteSpace = false;
+				if (negatedClass)
+					i++;
+			} else if (ch == '.') {
+				return true;
+			}
+		}
+		return inClass;
+	}
+}
@@ -0,0 +1,240 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * A parameterized SQL template that is parsed once and can then be rendered many times. Parsing splits the template into
+ * literal text, parameters, and {if}?{then}:{else} blocks, and extracts the defaults. Rendering fills in the parameters and
+ * picks the branches in a single pass, and gives the same result as SqlRender.renderSql.<br/>
+ * <br/>
+ * renderSql fills in the parameters first, and only then looks for the if-then-else blocks, so a parameter value can
+ * change the blocks, for instance if it contains a curly bracket. In those cases (and in the rare cases where
+ * ParameterSubstitution cannot substitute in a single pass), rendering falls back to doing what renderSql does.<br/>
+ * <br/>
+ * A compiled template does not change after it is created, so it can be rendered by several threads at the same time.
+ */
+public class CompiledTemplate {
+	private String				sql;
+	private Map<String, String>	defaults;
+	private String				text;
+	private int[]				parameterStarts;
+	private int[]				parameterEnds;
+	private IfThenElseTree		ifThenElseTree;
+
+	/**
+	 * @param sql
+	 *            The parameterized SQL, as it would be passed to SqlRender.renderSql
+	 */
+	public CompiledTemplate(String sql) {
+		this.sql = sql;
+		defaults = SqlRender.extractDefaults(sql);
+		text = SqlRender.removeDefaults(sql);
+		findParameters();
+		ifThenElseTree = new IfThenElseTree(text, parameterStarts, parameterEnds);
+	}
+
+	public String getSql() {
+		return sql;
+	}
+
+	/**
+	 * Renders the template.
+	 *
+	 * @param parameters
+	 *            The names of the parameters (without the &#64;-sign).
+	 * @param values
+	 *            The values of the parameters.
+	 * @return The rendered sql, the same as SqlRender.renderSql(sql, parameters, values)
+	 */
+	public String render(String[] parameters, String[] values) {
+		Map<String, String> parameterToValue = new HashMap<String, String>();
+		if (parameters != null)
+			for (int i = 0; i < parameters.length; i++) {
+				parameterToValue.put(parameters[i], values[i]);
+			}
+		return renderWithDefaults(parameterToValue);
+	}
+
+	/**
+	 * Renders the template.
+	 *
+	 * @param parameterToValue
+	 *            The names of the parameters (without the &#64;-sign) and their values. The map is not changed.
+	 * @return The rendered sql
+	 */
+	public String render(Map<String, String> parameterToValue) {
+		Map<String, String> copy = new HashMap<String, String>();
+		for (Map.Entry<String, String> pair : parameterToValue.entrySet())
+			copy.put(pair.getKey(), pair.getValue());
+		return renderWithDefaults(copy);
+	}
+
+	/**
+	 * Renders the template once for every set of values.
+	 *
+	 * @param parameters
+	 *            The names of the parameters (without the &#64;-sign), the same for all sets.
+	 * @param valueSets
+	 *            The sets of values. Each set has a value for every parameter, in the same order as the names.
+	 * @param executor
+	 *            The executor to render on, for instance a ForkJoinPool. If null, everything is rendered on the calling
+	 *            thread.
+	 * @return The rendered sql for each set, in the same order as the sets
+	 */
+	public String[] renderAll(String[] parameters, List<String[]> valueSets, ExecutorService executor) {
+		return renderAll(parameters, valueSets.toArray(new String[valueSets.size()][]), executor);
+	}
+
+	/**
+	 * Renders the template once for every row of a table of values.
+	 *
+	 * @param parameters
+	 *            The names of the parameters (without the &#64;-sign), one for each column.
+	 * @param values
+	 *            The values, column by column: the value of parameter p in row r is values[p * rowCount + r]. This is how
+	 *            R stores a matrix, so a character matrix can be passed as it is.
+	 * @param rowCount
+	 *            The number of rows.
+	 * @param executor
+	 *            The executor to render on, for instance a ForkJoinPool. If null, everything is rendered on the calling
+	 *            thread.
+	 * @return The rendered sql for each row
+	 */
+	public String[] renderAll(String[] parameters, String[] values, int rowCount, ExecutorService executor) {
+		int parameterCount = parameters == null ? 0 : parameters.length;
+		if (values.length != parameterCount * rowCount)
+			throw new RuntimeException("Expected " + parameterCount * rowCount + " values for " + parameterCount + " parameters and "
+					+ rowCount + " rows, but got " + values.length);
+		String[][] rows = new String[rowCount][parameterCount];
+		for (int p = 0; p < parameterCount; p++)
+			for (int r = 0; r < rowCount; r++)
+				rows[r][p] = values[p * rowCount + r];
+		return renderAll(parameters, rows, executor);
+	}
+
+	private String[] renderAll(final String[] parameters, final String[][] rows, ExecutorService executor) {
+		final String[] results = new String[rows.length];
+		int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism()
+				: Runtime.getRuntime().availableProcessors();
+		int chunkCount = executor == null ? 1 : Math.min(parallelism, rows.length);
+		if (chunkCount <= 1) {
+			for (int r = 0; r < rows.length; r++)
+				results[r] = render(parameters, rows[r]);
+			return results;
+		}
+		List<Future<Void>> futures = new ArrayList<Future<Void>>();
+		try {
+			// Contiguous chunks of rows, so each task writes its own part of the results:
+			for (int chunk = 0; chunk < chunkCount; chunk++) {
+				final int from = (int) ((long) rows.length * chunk / chunkCount);
+				final int to = (int) ((long) rows.length * (chunk + 1) / chunkCount);
+				futures.add(executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() {
+						for (int r = from; r < to; r++)
+							results[r] = render(parameters, rows[r]);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> future : futures)
+				future.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			for (Future<Void> future : futures)
+				future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		return results;
+	}
+
+	// When two parameter names have the same length, the order of the map decides which is replaced first. This is the
+	// same map SqlRender.renderSql would use:
+	private String renderWithDefaults(Map<String, String> parameterToValue) {
+		for (Map.Entry<String, String> pair : defaults.entrySet())
+			if (!parameterToValue.containsKey(pair.getKey()))
+				parameterToValue.put(pair.getKey(), pair.getValue());
+		ParameterSubstitution substitution = new ParameterSubstitution(parameterToValue);
+		if (!substitution.isSinglePass())
+			return SqlRender.renderSql(sql, parameterToValue);
+
+		String[] parameterTexts = new String[parameterStarts.length];
+		boolean hasCurlyBrackets = false;
+		for (int i = 0; i < parameterStarts.length; i++) {
+			StringBuilder parameterText = new StringBuilder();
+			int end = substitution.substituteAt(text, parameterStarts[i], 0, true, parameterText);
+			if (end == -1)
+				return SqlRender.renderSql(sql, parameterToValue);
+			parameterText.append(text, end, parameterEnds[i]);
+			parameterTexts[i] = parameterText.toString();
+			if (parameterTexts[i].indexOf('{') != -1 || parameterTexts[i].indexOf('}') != -1)
+				hasCurlyBrackets = true;
+		}
+
+		if (ifThenElseTree.dependsOnParameterValues() || hasCurlyBrackets) {
+			StringBuilder result = new StringBuilder(text.length());
+			int cursor = 0;
+			for (int i = 0; i < parameterStarts.length; i++) {
+				result.append(text, cursor, parameterStarts[i]);
+				result.append(parameterTexts[i]);
+				cursor = parameterEnds[i];
+			}
+			result.append(text, cursor, text.length());
+			return SqlRender.parseIfThenElse(result.toString());
+		}
+		return ifThenElseTree.render(parameterTexts);
+	}
+
+	/**
+	 * Finds every &#64;-sign with the name characters that follow it. Which part of that is a parameter depends on the
+	 * parameter names used when rendering.
+	 */
+	private void findParameters() {
+		List<Integer> starts = new ArrayList<Integer>();
+		List<Integer> ends = new ArrayList<Integer>();
+		int at = text.indexOf('@');
+		while (at != -1) {
+			int end = at + 1;
+			while (end < text.length() && ParameterSubstitution.isNameChar(text.charAt(end)))
+				end++;
+			starts.add(at);
+			ends.add(end);
+			at = text.indexOf('@', end);
+		}
+		parameterStarts = new int[starts.size()];
+		parameterEnds = new int[ends.size()];
+		for (int i = 0; i < parameterStarts.length; i++) {
+			parameterStarts[i] = starts.get(i);
+			parameterEnds[i] = ends.get(i);
+		}
+	}
+}
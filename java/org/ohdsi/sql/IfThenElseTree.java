@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {if}?{then}:{else} blocks of a SQL template, found in a single scan. A block is a condition in curly brackets, followed
+ * by a question mark and the 'then' part in curly brackets, and optionally a colon and the 'else' part in curly brackets.
+ * Rendering evaluates the conditions and writes the selected parts straight to the result.<br/>
+ * <br/>
+ * Blocks are applied the way SqlRender always has: a block is left as it is if it directly follows a block that was applied,
+ * and blocks can be chained ({a}?{b}:{c}?{d}:{e}), in which case applying one block leaves the next one as it is.<br/>
+ * <br/>
+ * The template can contain parameters that are only filled in when rendering. A parameter value that ends up between two
+ * curly bracket spans could change which blocks there are, so if a parameter is found there, the tree is not built and
+ * the parameters have to be filled in before parsing.
+ */
+public class IfThenElseTree {
+	private static final int		LITERAL					= 0;
+	private static final int		PARAMETER				= 1;
+	private static final int		IF_THEN_ELSE			= 2;
+	private static final int		MAX_CONDITION_VALUES	= 10000;
+
+	private String					text;
+	private int[]					parameterStarts;
+	private int[]					parameterEnds;
+	private List<Node>				nodes;
+	private Map<String, Boolean>	conditionValues			= new ConcurrentHashMap<String, Boolean>();
+
+	private static class Node {
+		public int					type;
+		public int					start;
+		public int					end;
+		public int					parameter;
+		// For blocks, the spans in curly brackets of a block (or chain of blocks), and where each block starts:
+		public int[]				spanStarts;
+		public int[]				spanEnds;
+		public List<List<Node>>		spans;
+		public int[]				blockFirstSpans;
+		public boolean[]			blockHasIfFalse;
+		public boolean				followsIfThenElse;
+
+		public Node(int type) {
+			this.type = type;
+		}
+	}
+
+	/**
+	 * @param text
+	 *            The SQL, with all parameters filled in.
+	 */
+	public IfThenElseTree(String text) {
+		this(text, new int[0], new int[0]);
+	}
+
+	/**
+	 * @param text
+	 *            The SQL
+	 * @param parameterStarts
+	 *            The positions of the parameters in the SQL, in ascending order
+	 * @param parameterEnds
+	 *            The positions where the parameters end
+	 */
+	public IfThenElseTree(String text, int[] parameterStarts, int[] parameterEnds) {
+		this.text = text;
+		this.parameterStarts = parameterStarts;
+		this.parameterEnds = parameterEnds;
+		nodes = parse();
+	}
+
+	/**
+	 * Returns true if a parameter value could change which blocks there are. The tree cannot be rendered in that case.
+	 */
+	public boolean dependsOnParameterValues() {
+		return nodes == null;
+	}
+
+	/**
+	 * Renders the SQL, keeping the selected parts of each block.
+	 *
+	 * @param parameterTexts
+	 *            The text to use for each parameter, which must not contain curly brackets.
+	 * @return The rendered SQL
+	 */
+	public String render(String[] parameterTexts) {
+		StringBuilder result = new StringBuilder(text.length());
+		render(nodes, parameterTexts, result);
+		return result.toString();
+	}
+
+	private void render(List<Node> nodes, String[] parameterTexts, StringBuilder result) {
+		boolean previousWasApplied = false;
+		for (Node node : nodes) {
+			boolean isApplied = false;
+			switch (node.type) {
+				case PARAMETER:
+					result.append(parameterTexts[node.parameter]);
+					break;
+				case IF_THEN_ELSE:
+					isApplied = renderIfThenElse(node, node.followsIfThenElse && previousWasApplied, parameterTexts, result);
+					break;
+				default:
+					result.append(text, node.start, node.end);
+			}
+			previousWasApplied = isApplied;
+		}
+	}
+
+	/**
+	 * Renders a block, or chain of blocks.
+	 *
+	 * @return True if the last block in the chain was applied.
+	 */
+	private boolean renderIfThenElse(Node node, boolean skipFirst, String[] parameterTexts, StringBuilder result) {
+		boolean apply = !skipFirst;
+		boolean lastWasApplied = false;
+		int unchangedStart = node.start;
+		for (int block = 0; block < node.blockFirstSpans.length; block++) {
+			if (apply) {
+				int condition = node.blockFirstSpans[block];
+				int last = node.blockHasIfFalse[block] ? condition + 2 : condition + 1;
+				renderUnchanged(node, unchangedStart, node.spanStarts[condition], parameterTexts, result);
+				StringBuilder conditionText = new StringBuilder();
+				render(node.spans.get(condition), parameterTexts, conditionText);
+				if (evaluateCondition(conditionText.toString()))
+					render(node.spans.get(condition + 1), parameterTexts, result);
+				else if (node.blockHasIfFalse[block])
+					render(node.spans.get(condition + 2), parameterTexts, result);
+				unchangedStart = node.spanEnds[last];
+			}
+			lastWasApplied = apply;
+			apply = !apply;
+		}
+		renderUnchanged(node, unchangedStart, node.end, parameterTexts, result);
+		return lastWasApplied;
+	}
+
+	/**
+	 * Evaluates a condition. The result only depends on the text of the condition, so it is kept for the next time the same
+	 * condition comes up, in this or a later render.
+	 */
+	private boolean evaluateCondition(String condition) {
+		Boolean value = conditionValues.get(condition);
+		if (value == null) {
+			value = new BooleanCondition(condition).evaluate();
+			if (conditionValues.size() < MAX_CONDITION_VALUES)
+				conditionValues.put(condition, value);
+		}
+		return value;
+	}
+
+	/**
+	 * Renders part of a block as it is, including the curly brackets. Blocks nested in its spans are still applied.
+	 */
+	private void renderUnchanged(Node node, int start, int end, String[] parameterTexts, StringBuilder result) {
+		int cursor = start;
+		for (int i = 0; i < node.spanStarts.length; i++)
+			if (node.spanStarts[i] >= start && node.spanEnds[i] <= end) {
+				result.append(text, cursor, node.spanStarts[i] + 1);
+				render(node.spans.get(i), parameterTexts, result);
+				cursor = node.spanEnds[i] - 1;
+			}
+		result.append(text, cursor, end);
+	}
+
+	private List<Node> parse() {
+		// Match the curly brackets:
+		int[] startToEnd = new int[text.length()];
+		Arrays.fill(startToEnd, -1);
+		int[] openStarts = new int[text.length()];
+		int openCount = 0;
+		for (int i = 0; i < text.length(); i++) {
+			if (text.charAt(i) == '{') {
+				openStarts[openCount++] = i;
+			} else if (text.charAt(i) == '}' && openCount != 0) {
+				startToEnd[openStarts[--openCount]] = i + 1;
+			}
+		}
+
+		// Link each condition to its 'then' and 'else' parts:
+		int[] startToIfTrue = new int[text.length()];
+		int[] startToIfFalse = new int[text.length()];
+		Arrays.fill(startToIfTrue, -1);
+		for (int start = 0; start < text.length(); start++) {
+			if (startToEnd[start] == -1)
+				continue;
+			int ifTrue = findNextSpan(startToEnd[start], '?', startToEnd);
+			if (ifTrue == -2)
+				return null;
+			if (ifTrue == -1)
+				continue;
+			int ifFalse = findNextSpan(startToEnd[ifTrue], ':', startToEnd);
+			if (ifFalse == -2)
+				return null;
+			startToIfTrue[start] = ifTrue;
+			startToIfFalse[start] = ifFalse;
+		}
+		return parseNodes(0, text.length(), startToEnd, startToIfTrue, startToIfFalse, new int[1]);
+	}
+
+	private List<Node> parseNodes(int from, int to, int[] startToEnd, int[] startToIfTrue, int[] startToIfFalse, int[] parameterCount) {
+		List<Node> nodes = new ArrayList<Node>();
+		int previousEnd = -1;
+		int literalStart = from;
+		int cursor = from;
+		while (cursor < to) {
+			boolean isParameter = parameterCount[0] < parameterStarts.length && parameterStarts[parameterCount[0]] == cursor;
+			if (isParameter || (text.charAt(cursor) == '{' && startToIfTrue[cursor] != -1)) {
+				if (cursor > literalStart) {
+					Node literal = new Node(LITERAL);
+					literal.start = literalStart;
+					literal.end = cursor;
+					nodes.add(literal);
+				}
+				if (isParameter) {
+					Node parameter = new Node(PARAMETER);
+					parameter.parameter = parameterCount[0]++;
+					nodes.add(parameter);
+					cursor = parameterEnds[parameter.parameter];
+				} else {
+					Node ifThenElse = parseIfThenElse(cursor, startToEnd, startToIfTrue, startToIfFalse, parameterCount);
+					ifThenElse.followsIfThenElse = cursor == previousEnd;
+					nodes.add(ifThenElse);
+					cursor = ifThenElse.end;
+					previousEnd = cursor;
+				}
+				literalStart = cursor;
+			} else {
+				cursor++;
+			}
+		}
+		if (to > literalStart) {
+			Node literal = new Node(LITERAL);
+			literal.start = literalStart;
+			literal.end = to;
+			nodes.add(literal);
+		}
+		return nodes;
+	}
+
+	/**
+	 * Parses the block starting at the given condition, and the blocks chained to it (whose condition is the last part of
+	 * the block before).
+	 */
+	private Node parseIfThenElse(int start, int[] startToEnd, int[] startToIfTrue, int[] startToIfFalse, int[] parameterCount) {
+		List<Integer> spanStarts = new ArrayList<Integer>();
+		List<List<Node>> spans = new ArrayList<List<Node>>();
+		List<Integer> blockFirstSpans = new ArrayList<Integer>();
+		List<Boolean> blockHasIfFalse = new ArrayList<Boolean>();
+		int condition = start;
+		spanStarts.add(condition);
+		spans.add(parseNodes(condition + 1, startToEnd[condition] - 1, startToEnd, startToIfTrue, startToIfFalse, parameterCount));
+		while (startToIfTrue[condition] != -1) {
+			blockFirstSpans.add(spanStarts.size() - 1);
+			int last = startToIfTrue[condition];
+			spanStarts.add(last);
+			spans.add(parseNodes(last + 1, startToEnd[last] - 1, startToEnd, startToIfTrue, startToIfFalse, parameterCount));
+			if (startToIfFalse[condition] != -1) {
+				last = startToIfFalse[condition];
+				spanStarts.add(last);
+				spans.add(parseNodes(last + 1, startToEnd[last] - 1, startToEnd, startToIfTrue, startToIfFalse, parameterCount));
+			}
+			blockHasIfFalse.add(startToIfFalse[condition] != -1);
+			condition = last;
+		}
+		Node ifThenElse = new Node(IF_THEN_ELSE);
+		ifThenElse.spans = spans;
+		ifThenElse.spanStarts = new int[spanStarts.size()];
+		ifThenElse.spanEnds = new int[spanStarts.size()];
+		for (int i = 0; i < spanStarts.size(); i++) {
+			ifThenElse.spanStarts[i] = spanStarts.get(i);
+			ifThenElse.spanEnds[i] = startToEnd[spanStarts.get(i)];
+		}
+		ifThenElse.blockFirstSpans = new int[blockFirstSpans.size()];
+		ifThenElse.blockHasIfFalse = new boolean[blockFirstSpans.size()];
+		for (int i = 0; i < blockFirstSpans.size(); i++) {
+			ifThenElse.blockFirstSpans[i] = blockFirstSpans.get(i);
+			ifThenElse.blockHasIfFalse[i] = blockHasIfFalse.get(i);
+		}
+		ifThenElse.start = start;
+		ifThenElse.end = ifThenElse.spanEnds[ifThenElse.spanEnds.length - 1];
+		return ifThenElse;
+	}
+
+	/**
+	 * Finds the span following the span ending at the given position, separated only by white space and the separator.
+	 *
+	 * @return The start of the next span, -1 if there is none, or -2 if this depends on the value of a parameter.
+	 */
+	private int findNextSpan(int end, char separator, int[] startToEnd) {
+		int cursor = skipWhiteSpace(end);
+		if (cursor == text.length())
+			return -1;
+		if (isParameterStart(cursor))
+			return -2;
+		if (text.charAt(cursor) != separator)
+			return -1;
+		cursor = skipWhiteSpace(cursor + 1);
+		if (cursor == text.length())
+			return -1;
+		if (isParameterStart(cursor))
+			return -2;
+		if (text.charAt(cursor) != '{' || startToEnd[cursor] == -1)
+			return -1;
+		return cursor;
+	}
+
+	private boolean isParameterStart(int position) {
+		return Arrays.binarySearch(parameterStarts, position) >= 0;
+	}
+
+	// The same characters String.trim() removes:
+	private int skipWhiteSpace(int cursor) {
+		while (cursor < text.length() && text.charAt(cursor) <= ' ')
+			cursor++;
+		return cursor;
+	}
+}
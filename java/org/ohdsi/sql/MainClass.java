@@ -17,6 +17,7 @@ package org.ohdsi.sql;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.FileWriter;
@@ -30,11 +31,23 @@ import java.util.List;
 public class MainClass {
 
 	public static void main(String[] args) {
+		if (args.length > 0 && args[0].equals("-serve")) {
+			serve(args);
+			return;
+		}
 		if (args.length < 4 || (args.length > 0
 				&& (args[0].toLowerCase().equals("-usage") || args[0].toLowerCase().equals("-help") || args[0].toLowerCase().equals("?")))) {
 			printUsage();
 			return;
 		}
+		for (int i = 2; i < args.length; i++)
+			if (args[i].equals("-stream")) {
+				stream(args);
+				return;
+			} else if (args[i].equals("-batch")) {
+				batch(args);
+				return;
+			}
 		String sql = readFile(args[0]);
 
 		// Render
@@ -43,7 +56,7 @@ public class MainClass {
 				List<String> parameters = new ArrayList<String>();
 				List<String> values = new ArrayList<String>();
 				for (int j = i + 1; j < args.length - 1; j += 2) {
-					if (args[j].equals("-translate") || args[j].equals("-temp_emulation_schema") || args[j].equals("-session_id"))
+					if (isOption(args[j]))
 						break;
 					parameters.add(args[j]);
 					values.add(args[j + 1]);
@@ -73,6 +86,134 @@ public class MainClass {
 		writeFile(sql, args[1]);
 	}
 
+	private static boolean isOption(String arg) {
+		return arg.equals("-render") || arg.equals("-translate") || arg.equals("-temp_emulation_schema") || arg.equals("-session_id")
+				|| arg.equals("-stream") || arg.equals("-batch") || arg.equals("-threads") || arg.equals("-glob");
+	}
+
+	/**
+	 * Renders and translates all SQL files in the input folder or manifest, to all target dialects.
+	 */
+	private static void batch(String[] args) {
+		BatchTranslator batchTranslator = new BatchTranslator(new File(args[0]), new File(args[1]));
+		boolean hasRenderParameters = false;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-render") && !hasRenderParameters) {
+				List<String> parameters = new ArrayList<String>();
+				List<String> values = new ArrayList<String>();
+				for (int j = i + 1; j < args.length - 1 && !isOption(args[j]); j += 2) {
+					parameters.add(args[j]);
+					values.add(args[j + 1]);
+				}
+				batchTranslator.setRenderParameters(parameters.toArray(new String[parameters.size()]), values.toArray(new String[values.size()]));
+				hasRenderParameters = true;
+			} else if (i < args.length - 1) {
+				if (args[i].equals("-translate"))
+					batchTranslator.addTargetDialect(args[i + 1]);
+				else if (args[i].equals("-temp_emulation_schema"))
+					batchTranslator.setTempEmulationSchema(args[i + 1]);
+				else if (args[i].equals("-session_id"))
+					batchTranslator.setSessionId(args[i + 1]);
+				else if (args[i].equals("-threads"))
+					batchTranslator.setThreads(parseNumber(args[i], args[i + 1]));
+				else if (args[i].equals("-glob"))
+					batchTranslator.setGlob(args[i + 1]);
+			}
+		}
+		try {
+			if (batchTranslator.run() != 0)
+				System.exit(1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Renders and translates the input file statement by statement, without reading it into memory at once.
+	 */
+	private static void stream(String[] args) {
+		List<String> parameters = null;
+		List<String> values = new ArrayList<String>();
+		String targetDialect = null;
+		String tempEmulationSchema = null;
+		String sessionId = null;
+		for (int i = 2; i < args.length; i++) {
+			if (args[i].equals("-render") && parameters == null) {
+				parameters = new ArrayList<String>();
+				for (int j = i + 1; j < args.length - 1 && !isOption(args[j]); j += 2) {
+					parameters.add(args[j]);
+					values.add(args[j + 1]);
+				}
+			} else if (i < args.length - 1) {
+				if (args[i].equals("-translate") && targetDialect == null)
+					targetDialect = args[i + 1];
+				else if (args[i].equals("-temp_emulation_schema") && tempEmulationSchema == null)
+					tempEmulationSchema = args[i + 1];
+				else if (args[i].equals("-session_id") && sessionId == null)
+					sessionId = args[i + 1];
+			}
+		}
+		BufferedReader reader = null;
+		BufferedWriter writer = null;
+		boolean failed = false;
+		try {
+			reader = new BufferedReader(new FileReader(args[0]));
+			writer = new BufferedWriter(new FileWriter(args[1]));
+			SqlStream.renderAndTranslate(reader, writer, parameters == null ? null : parameters.toArray(new String[parameters.size()]),
+					values.toArray(new String[values.size()]), targetDialect, sessionId, tempEmulationSchema, null);
+		} catch (IOException e) {
+			e.printStackTrace();
+			failed = true;
+		} finally {
+			try {
+				if (reader != null)
+					reader.close();
+				if (writer != null)
+					writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+				failed = true;
+			}
+		}
+		if (failed)
+			System.exit(1);
+	}
+
+	/**
+	 * Parses the number given for an option, or exits if it isn't a number.
+	 */
+	private static int parseNumber(String option, String value) {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			System.err.println("Expected a number after " + option + ", but got '" + value + "'");
+			System.exit(1);
+			return 0;
+		}
+	}
+
+	/**
+	 * Runs the server until the process is stopped.
+	 */
+	private static void serve(String[] args) {
+		int port = 0;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int i = 1; i < args.length - 1; i++)
+			if (args[i].equals("-port"))
+				port = parseNumber(args[i], args[i + 1]);
+			else if (args[i].equals("-threads"))
+				threads = parseNumber(args[i], args[i + 1]);
+		try {
+			TranslationServer server = new TranslationServer(port, threads);
+			System.out.println("SqlRender server listening on port " + server.getPort());
+			server.serve();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
 	private static void printUsage() {
 		System.out.println("SqlRender");
 		System.out.println("  Translates OHDSI SQL into one of the supported target SQL dialects, and renders the SQL according to user-specified parameters. See https://github.com/OHDSI/SqlRender for details.");
@@ -85,10 +226,29 @@ public class MainClass {
 		System.out.println("  -translate <target dialect>     Translate the input SQL to the target dialect");
 		System.out.println("  -temp_emulation_schema <schema>  When translating to platforms that don't support tempt table, use this schema to emulate temp tables");
 		System.out.println("  -session_id <session id>        When translating to Oracle SQL, use this ID to make emulated temp table names unique. Should be 8 chars long");
+		System.out.println("  -stream                         Process the input one statement at a time instead of reading it into memory at once. Use for very large files");
+		System.out.println("");
+		System.out.println("Batch mode");
+		System.out.println("  java -jar SqlRender.jar <input folder or manifest> <output folder> -batch [options]");
+		System.out.println("  Processes all SQL files in the input folder, or listed in the manifest file (one path per line, relative to the manifest), in one process.");
+		System.out.println("  Output is written to the same relative paths in the output folder, in a subfolder per target dialect. Besides the options above:");
+		System.out.println("  -translate <target dialect>     Can be repeated to translate to several dialects");
+		System.out.println("  -threads <number>               The number of files to process at the same time. Defaults to the number of processors");
+		System.out.println("  -glob <pattern>                 The pattern of the files to process in the input folder. Defaults to **.sql");
+		System.out.println("");
+		System.out.println("Server mode");
+		System.out.println("  java -jar SqlRender.jar -serve [-port <port>] [-threads <number>]");
+		System.out.println("  Listens on a port of the loopback address for requests, one JSON object per line, such as");
+		System.out.println("  {\"id\": 1, \"op\": \"translate\", \"sql\": \"SELECT TOP 10 * FROM a;\", \"targetDialect\": \"postgresql\"}");
+		System.out.println("  Supported ops are render (with \"parameters\": {\"name\": \"value\"}), translate, split, and check. Responses are");
+		System.out.println("  JSON objects with the id and a result or error, one per line, in the order of the requests. If no port is");
+		System.out.println("  specified a free port is used. The port is printed at startup.");
 		System.out.println("");
 		System.out.println("Examples");
 		System.out.println("  java -jar SqlRender.jar in.sql out.sql -translate postgresql");
 		System.out.println("  java -jar SqlRender.jar in.sql out.sql -translate oracle -render cdm_database_schema cdm_synpuf target_database_schema scratch");
+		System.out.println("  java -jar SqlRender.jar in.sql out.sql -translate redshift -stream");
+		System.out.println("  java -jar SqlRender.jar sql/ translated/ -batch -translate oracle -translate postgresql -threads 8");
 	}
 
 	private static String readFile(String fileName) {
@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Substitutes parameter values in a single scan of the SQL. Each &#64;-sign is looked up in a trie of the parameter names,
+ * and the value of the longest matching name is written straight to the result. The result is the same as replacing the
+ * parameters one by one, from the longest name to the shortest, in the whole SQL (as SqlRender has always done): a
+ * parameter followed by more letters is replaced by the longest matching name, and a value containing another parameter
+ * has that parameter replaced too, but only if it comes later in that order.<br/>
+ * <br/>
+ * In a few rare cases replacing one by one can match a parameter name that only appears once a value has been inserted
+ * next to other text, for instance when a value is inserted directly after '&#64;a'. When that can happen, the parameters
+ * are replaced one by one instead.
+ */
+public class ParameterSubstitution {
+	// Name characters are mapped to 0..62 in the trie:
+	private static final int				ALPHABET_SIZE	= 63;
+
+	private List<Map.Entry<String, String>>	sortedParameterToValue;
+	private String[]						names;
+	private String[]						values;
+	private boolean							isSinglePass	= true;
+	private int[]							trieChildren;
+	private int[]							trieNames;
+	private int								trieSize;
+
+	/**
+	 * @param parameterToValue
+	 *            The parameter names (without the &#64;-sign) and values. For names of equal length, the iteration order of
+	 *            the map decides which is replaced first.
+	 */
+	public ParameterSubstitution(Map<String, String> parameterToValue) {
+		sortedParameterToValue = new ArrayList<Map.Entry<String, String>>(parameterToValue.entrySet());
+		Collections.sort(sortedParameterToValue, new Comparator<Map.Entry<String, String>>() {
+
+			@Override
+			public int compare(Map.Entry<String, String> o1, Map.Entry<String, String> o2) {
+				return o2.getKey().length() - o1.getKey().length();
+			}
+		});
+		names = new String[sortedParameterToValue.size()];
+		values = new String[sortedParameterToValue.size()];
+		for (int i = 0; i < names.length; i++) {
+			names[i] = sortedParameterToValue.get(i).getKey();
+			values[i] = sortedParameterToValue.get(i).getValue();
+			// A missing value fails when replacing one by one:
+			if (values[i] == null)
+				isSinglePass = false;
+			// Names are used in a regular expression when replacing one by one, so only plain names behave the same here:
+			if (names[i].length() == 0)
+				isSinglePass = false;
+			for (int j = 0; j < names[i].length(); j++)
+				if (!isNameChar(names[i].charAt(j)))
+					isSinglePass = false;
+		}
+		if (isSinglePass)
+			buildTrie();
+	}
+
+	private void buildTrie() {
+		trieChildren = new int[ALPHABET_SIZE * 16];
+		trieNames = new int[16];
+		trieSize = 1;
+		Arrays.fill(trieChildren, -1);
+		Arrays.fill(trieNames, -1);
+		for (int i = 0; i < names.length; i++) {
+			int node = 0;
+			for (int j = 0; j < names[i].length(); j++) {
+				int child = node * ALPHABET_SIZE + toIndex(names[i].charAt(j));
+				if (trieChildren[child] == -1) {
+					if (trieSize == trieNames.length) {
+						int oldLength = trieNames.length;
+						trieNames = Arrays.copyOf(trieNames, oldLength * 2);
+						trieChildren = Arrays.copyOf(trieChildren, oldLength * 2 * ALPHABET_SIZE);
+						Arrays.fill(trieNames, oldLength, trieNames.length, -1);
+						Arrays.fill(trieChildren, oldLength * ALPHABET_SIZE, trieChildren.length, -1);
+					}
+					trieChildren[child] = trieSize++;
+				}
+				node = trieChildren[child];
+			}
+			trieNames[node] = i;
+		}
+	}
+
+	private static int toIndex(char ch) {
+		if (ch >= 'a' && ch <= 'z')
+			return ch - 'a';
+		if (ch >= 'A' && ch <= 'Z')
+			return ch - 'A' + 26;
+		if (ch >= '0' && ch <= '9')
+			return ch - '0' + 52;
+		return 62;
+	}
+
+	public static boolean isNameChar(char ch) {
+		return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+	}
+
+	/**
+	 * Returns false if the parameter names are such that the parameters always have to be replaced one by one.
+	 */
+	public boolean isSinglePass() {
+		return isSinglePass;
+	}
+
+	/**
+	 * Substitutes all parameters in the SQL.
+	 *
+	 * @return The SQL with the parameters substituted
+	 */
+	public String substitute(String sql) {
+		String result = substituteInSinglePass(sql);
+		if (result == null)
+			result = substituteOneByOne(sql);
+		return result;
+	}
+
+	private String substituteOneByOne(String sql) {
+		for (Map.Entry<String, String> pair : sortedParameterToValue) {
+			String key = pair.getKey();
+			String value = pair.getValue().replaceAll("\\\\", "\\\\\\\\"); // Escape backslashes (again)
+			sql = sql.replaceAll("@" + key, SqlRender.escapeDollarSign(value));
+		}
+		return sql;
+	}
+
+	private String substituteInSinglePass(String sql) {
+		if (!isSinglePass)
+			return null;
+		StringBuilder result = new StringBuilder(sql.length());
+		int cursor = 0;
+		while (cursor < sql.length()) {
+			int at = sql.indexOf('@', cursor);
+			if (at == -1) {
+				result.append(sql, cursor, sql.length());
+				break;
+			}
+			result.append(sql, cursor, at);
+			cursor = substituteAt(sql, at, 0, true, result);
+			if (cursor == -1)
+				return null;
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Substitutes the parameter starting at the given &#64;-sign, if any.
+	 *
+	 * @param sql
+	 *            The SQL (or parameter value) containing the &#64;-sign
+	 * @param at
+	 *            The position of the &#64;-sign
+	 * @param firstName
+	 *            The index of the first parameter name (in replacement order) that can still be replaced
+	 * @param isOuterText
+	 *            True if the SQL is not itself a parameter value
+	 * @param result
+	 *            The result to append to
+	 * @return The position in the SQL after the substituted parameter, or -1 if the parameters have to be replaced one by one.
+	 */
+	public int substituteAt(CharSequence sql, int at, int firstName, boolean isOuterText, StringBuilder result) {
+		int name = findName(sql, at + 1, firstName);
+		if (name == -1) {
+			result.append('@');
+			return at + 1;
+		}
+		int end = at + 1 + names[name].length();
+		// A name could run on from text before the value, or from the value into the text after it:
+		if (isPrecededByParameter(sql, at))
+			return -1;
+		String value = values[name];
+		if (isPrecededByParameter(value, value.length())
+				&& (end == sql.length() ? !isOuterText : (isNameChar(sql.charAt(end)) || sql.charAt(end) == '@')))
+			return -1;
+		int cursor = 0;
+		while (cursor < value.length()) {
+			int valueAt = value.indexOf('@', cursor);
+			if (valueAt == -1) {
+				result.append(value, cursor, value.length());
+				break;
+			}
+			result.append(value, cursor, valueAt);
+			cursor = substituteAt(value, valueAt, name + 1, false, result);
+			if (cursor == -1)
+				return -1;
+		}
+		return end;
+	}
+
+	/**
+	 * Finds the longest parameter name at the start position that can still be replaced. Names later in the replacement order
+	 * are never longer, so that is the last name found walking down the trie.
+	 */
+	private int findName(CharSequence sql, int start, int firstName) {
+		int name = -1;
+		int node = 0;
+		for (int i = start; i < sql.length() && isNameChar(sql.charAt(i)); i++) {
+			node = trieChildren[node * ALPHABET_SIZE + toIndex(sql.charAt(i))];
+			if (node == -1)
+				break;
+			if (trieNames[node] >= firstName)
+				name = trieNames[node];
+		}
+		return name;
+	}
+
+	/**
+	 * Checks whether the text before the position is an &#64;-sign followed by zero or more name characters.
+	 */
+	private static boolean isPrecededByParameter(CharSequence sql, int position) {
+		for (int i = position - 1; i >= 0; i--) {
+			char ch = sql.charAt(i);
+			if (ch == '@')
+				return true;
+			if (!isNameChar(ch))
+				return false;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+/**
+ * For each rule of a dialect, the lowest position in a SQL script where the rule could start to match. The positions are
+ * found with a single pass of the RulePrefixAutomaton over the tokens of the script. When the script changes because a rule
+ * has been applied, only the changed region is scanned again. Rules are still applied one by one in their original order;
+ * this only tells which rules to try and where to start searching.<br/>
+ * <br/>
+ * A position is a lower bound: no occurrence of the rule's prefix starts before it, but an edit may have removed the
+ * occurrence at the position itself.
+ */
+public class RuleCandidates {
+	private static final int	NONE	= Integer.MAX_VALUE;
+
+	private RulePrefixAutomaton	automaton;
+	private int[]				ruleStarts;
+
+	public RuleCandidates(RulePrefixAutomaton automaton, TokenBuffer sql) {
+		this.automaton = automaton;
+		ruleStarts = new int[automaton.getRuleCount()];
+		for (int rule = 0; rule < ruleStarts.length; rule++)
+			ruleStarts[rule] = automaton.getPrefixLength(rule) == 0 ? 0 : NONE;
+		automaton.scan(sql, 0, sql.getTokenCount(), ruleStarts);
+		sql.clearChanges();
+	}
+
+	/**
+	 * Updates the start positions of the rules after the SQL has changed. Only the region where the tokens changed (and
+	 * enough tokens around it to contain the longest prefix) is scanned.
+	 *
+	 * @param sql
+	 *            The SQL, with the changes since the last update
+	 * @param fromRule
+	 *            The first rule that still needs to be applied. Earlier rules are not updated.
+	 */
+	public void update(TokenBuffer sql, int fromRule) {
+		if (!sql.hasChanges())
+			return;
+		int overlap = Math.max(automaton.getMaxPrefixLength() - 1, 0);
+		int fromToken = Math.max(sql.findToken(sql.getChangeStart()) - overlap, 0);
+		int firstUnchangedToken = sql.findToken(sql.getChangeEnd());
+		int toToken = Math.min(firstUnchangedToken + overlap, sql.getTokenCount());
+		int scanStart = fromToken < sql.getTokenCount() ? sql.getStart(fromToken) : sql.getChangeStart();
+		int oldChangeEnd = sql.getChangeEnd() - sql.getChangeDelta();
+		for (int rule = fromRule; rule < ruleStarts.length; rule++) {
+			int start = ruleStarts[rule];
+			if (start == NONE || start < scanStart || automaton.getPrefixLength(rule) == 0)
+				continue;
+			if (start >= oldChangeEnd)
+				ruleStarts[rule] = start + sql.getChangeDelta();
+			else
+				// The occurrence may be gone. Any other occurrence is found by the scan, or starts after the change:
+				ruleStarts[rule] = sql.getChangeEnd();
+		}
+		automaton.scan(sql, fromToken, toToken, ruleStarts);
+		sql.clearChanges();
+	}
+
+	/**
+	 * Returns the token to start searching for matches of the rule at, or -1 if the rule cannot match.
+	 */
+	public int getStartToken(TokenBuffer sql, int rule) {
+		if (ruleStarts[rule] == NONE)
+			return -1;
+		if (automaton.hasQuotesInPrefix(rule))
+			return 0;
+		return sql.findToken(ruleStarts[rule]);
+	}
+}
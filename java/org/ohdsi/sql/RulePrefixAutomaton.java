@@ -0,0 +1,207 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ohdsi.sql.SqlTranslate.Block;
+
+/**
+ * An Aho-Corasick automaton over the literal token prefixes of all rules of a dialect. A rule's prefix is the sequence of
+ * literal tokens its search pattern starts with, up to the first variable. Feeding the tokens of a SQL script through the
+ * automaton once finds where each rule could start to match.<br/>
+ * <br/>
+ * Rules starting with a regex variable have no prefix, and can start anywhere.<br/>
+ * <br/>
+ * Scanning looks up transitions by the hash of the token text, so it doesn't need to create a string per token.
+ */
+public class RulePrefixAutomaton {
+	private List<Map<String, Integer>>	transitions	= new ArrayList<Map<String, Integer>>();
+	private int[]						failures;
+	private int[][]						stateToRules;
+	private int[]						prefixLengths;
+	private boolean[]					hasQuotesInPrefix;
+	private int							maxPrefixLength;
+
+	// Open addressing table of all transitions, by state and token hash. Different token texts can have the same hash,
+	// so the text leading to the next state is compared as well:
+	private int[]						tableStates;
+	private int[]						tableHashes;
+	private int[]						tableNextStates;	// 0 for an empty slot, since no transition leads to state 0
+	private String[]					stateToText;
+
+	public RulePrefixAutomaton(List<CompiledDialect.Rule> rules) {
+		prefixLengths = new int[rules.size()];
+		hasQuotesInPrefix = new boolean[rules.size()];
+		transitions.add(new HashMap<String, Integer>());
+		List<List<Integer>> stateToRuleList = new ArrayList<List<Integer>>();
+		stateToRuleList.add(new ArrayList<Integer>());
+		for (int i = 0; i < rules.size(); i++) {
+			List<Block> parsedPattern = rules.get(i).parsedPattern;
+			if (parsedPattern == null)
+				continue;
+			int state = 0;
+			int length = 0;
+			while (length < parsedPattern.size() && !parsedPattern.get(length).isVariable) {
+				String text = parsedPattern.get(length).text;
+				if (text.equals("'") || text.equals("\""))
+					hasQuotesInPrefix[i] = true;
+				Integer next = transitions.get(state).get(text);
+				if (next == null) {
+					next = transitions.size();
+					transitions.get(state).put(text, next);
+					transitions.add(new HashMap<String, Integer>());
+					stateToRuleList.add(new ArrayList<Integer>());
+				}
+				state = next;
+				length++;
+			}
+			prefixLengths[i] = length;
+			maxPrefixLength = Math.max(maxPrefixLength, length);
+			if (length != 0)
+				stateToRuleList.get(state).add(i);
+		}
+
+		// Breadth-first, so the failure state of a state is done before the state itself:
+		failures = new int[transitions.size()];
+		stateToRules = new int[transitions.size()][];
+		stateToRules[0] = new int[0];
+		List<Integer> queue = new ArrayList<Integer>();
+		for (int child : transitions.get(0).values())
+			queue.add(child);
+		for (int i = 0; i < queue.size(); i++) {
+			int state = queue.get(i);
+			for (Map.Entry<String, Integer> transition : transitions.get(state).entrySet()) {
+				int child = transition.getValue();
+				failures[child] = next(failures[state], transition.getKey());
+				queue.add(child);
+			}
+		}
+		for (int state : queue) {
+			// Rules matching at the failure state match here too, since its prefix is a suffix of this state's:
+			List<Integer> stateRules = stateToRuleList.get(state);
+			int[] failureRules = stateToRules[failures[state]];
+			stateToRules[state] = new int[stateRules.size() + failureRules.length];
+			for (int i = 0; i < stateRules.size(); i++)
+				stateToRules[state][i] = stateRules.get(i);
+			System.arraycopy(failureRules, 0, stateToRules[state], stateRules.size(), failureRules.length);
+		}
+
+		int capacity = 16;
+		while (capacity < 2 * transitions.size())
+			capacity *= 2;
+		tableStates = new int[capacity];
+		tableHashes = new int[capacity];
+		tableNextStates = new int[capacity];
+		stateToText = new String[transitions.size()];
+		for (int state = 0; state < transitions.size(); state++)
+			for (Map.Entry<String, Integer> transition : transitions.get(state).entrySet()) {
+				int hash = transition.getKey().hashCode();
+				int slot = slot(state, hash);
+				while (tableNextStates[slot] != 0)
+					slot = (slot + 1) & (capacity - 1);
+				tableStates[slot] = state;
+				tableHashes[slot] = hash;
+				tableNextStates[slot] = transition.getValue();
+				stateToText[transition.getValue()] = transition.getKey();
+			}
+	}
+
+	private int slot(int state, int hash) {
+		int mixed = hash * 31 + state;
+		return (mixed ^ (mixed >>> 16)) & (tableStates.length - 1);
+	}
+
+	private int next(int state, String text) {
+		while (true) {
+			Integer next = transitions.get(state).get(text);
+			if (next != null)
+				return next;
+			if (state == 0)
+				return 0;
+			state = failures[state];
+		}
+	}
+
+	private int next(int state, TokenBuffer sql, int token) {
+		int hash = sql.getHash(token);
+		while (true) {
+			int mask = tableStates.length - 1;
+			for (int slot = slot(state, hash); tableNextStates[slot] != 0; slot = (slot + 1) & mask)
+				if (tableStates[slot] == state && tableHashes[slot] == hash
+						&& sql.textEquals(token, stateToText[tableNextStates[slot]]))
+					return tableNextStates[slot];
+			if (state == 0)
+				return 0;
+			state = failures[state];
+		}
+	}
+
+	public int getRuleCount() {
+		return prefixLengths.length;
+	}
+
+	/**
+	 * Returns the number of literal tokens at the start of the rule's search pattern, or 0 if the rule starts with a regex
+	 * variable.
+	 */
+	public int getPrefixLength(int rule) {
+		return prefixLengths[rule];
+	}
+
+	/**
+	 * A partial match of a prefix containing a quote changes the state of SqlTranslate.search for the rest of the search,
+	 * so searching a rule like that cannot skip ahead to the first occurrence of its prefix.
+	 */
+	public boolean hasQuotesInPrefix(int rule) {
+		return hasQuotesInPrefix[rule];
+	}
+
+	public int getMaxPrefixLength() {
+		return maxPrefixLength;
+	}
+
+	/**
+	 * Finds all occurrences of rule prefixes starting in the given range of tokens, and lowers the start positions of the
+	 * rules accordingly. Like SqlTranslate.search, the first token of an occurrence must not be in quotes.
+	 *
+	 * @param sql
+	 *            The SQL to scan
+	 * @param fromToken
+	 *            The first token to scan
+	 * @param toToken
+	 *            The token to stop scanning at (exclusive). Occurrences must end before this token.
+	 * @param ruleStarts
+	 *            For each rule, the lowest position where the rule could start. Updated in place.
+	 */
+	public void scan(TokenBuffer sql, int fromToken, int toToken, int[] ruleStarts) {
+		int state = 0;
+		for (int token = fromToken; token < toToken; token++) {
+			state = next(state, sql, token);
+			for (int rule : stateToRules[state]) {
+				int startToken = token - prefixLengths[rule] + 1;
+				if (!sql.isInQuotes(startToken)) {
+					int start = sql.getStart(startToken);
+					if (start < ruleStarts[rule])
+						ruleStarts[rule] = start;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An immutable snapshot of the replacement patterns of all target dialects, as loaded from a replacementPatterns.csv file.
+ * Each snapshot has a version number that is unique within the JVM, so results computed with one set of rules can be told
+ * apart from results computed with another.
+ */
+public class RuleSet {
+	private static AtomicLong					lastVersion	= new AtomicLong();
+
+	private final long							version;
+	private final String						source;
+	private final Map<String, CompiledDialect>	targetToCompiledDialect;
+
+	private RuleSet(String source, Map<String, CompiledDialect> targetToCompiledDialect) {
+		this.version = lastVersion.incrementAndGet();
+		this.source = source;
+		this.targetToCompiledDialect = Collections.unmodifiableMap(targetToCompiledDialect);
+	}
+
+	/**
+	 * Loads and compiles the replacement patterns.
+	 *
+	 * @param pathToReplacementPatterns
+	 *            The absolute path of the csv file containing the replacement patterns. If null, the csv file inside the jar
+	 *            is used.
+	 * @return The new rule set
+	 */
+	public static RuleSet load(String pathToReplacementPatterns) {
+		try {
+			InputStream inputStream;
+			if (pathToReplacementPatterns == null) // Use CSV file in JAR
+				inputStream = RuleSet.class.getResourceAsStream("/inst/csv/replacementPatterns.csv");
+			else
+				inputStream = new FileInputStream(pathToReplacementPatterns);
+			return load(pathToReplacementPatterns, inputStream);
+		} catch (IOException e) {
+			throw new RuntimeException("Error loading replacement patterns from "
+					+ (pathToReplacementPatterns == null ? "jar" : pathToReplacementPatterns), e);
+		}
+	}
+
+	/**
+	 * Loads and compiles the replacement patterns from a stream. The stream is closed afterwards.
+	 *
+	 * @param source
+	 *            The path the patterns come from, or null for the csv file inside the jar
+	 * @param inputStream
+	 *            The content of the csv file
+	 * @return The new rule set
+	 */
+	public static RuleSet load(String source, InputStream inputStream) throws IOException {
+		BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
+		try {
+			Map<String, CompiledDialect> compiledDialects = new HashMap<String, CompiledDialect>();
+			String line;
+			boolean first = true;
+			while ((line = bufferedReader.readLine()) != null) {
+				if (first) { // Skip first line
+					first = false;
+					continue;
+				}
+				List<String> row = line2columns(line);
+				String target = row.get(0);
+				CompiledDialect compiledDialect = compiledDialects.get(target);
+				if (compiledDialect == null) {
+					compiledDialect = new CompiledDialect(target);
+					compiledDialects.put(target, compiledDialect);
+				}
+				compiledDialect.addRule(row.get(1).replaceAll("@", "@@"), row.get(2).replaceAll("@", "@@"));
+			}
+			return new RuleSet(source, compiledDialects);
+		} finally {
+			bufferedReader.close();
+		}
+	}
+
+	private static List<String> line2columns(String line) {
+		List<String> columns = StringUtils.safeSplit(line, ',');
+		for (int i = 0; i < columns.size(); i++) {
+			String column = columns.get(i);
+			if (column.startsWith("\"") && column.endsWith("\"") && column.length() > 1)
+				column = column.substring(1, column.length() - 1);
+			column = column.replace("\\\"", "\"");
+			column = column.replace("\\n", "\n");
+			columns.set(i, column);
+		}
+		return columns;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the path the rules were loaded from, or null if they were loaded from the csv file inside the jar.
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Returns the rules for the target dialect, or null if there are no rules for the dialect.
+	 */
+	public CompiledDialect getCompiledDialect(String targetDialect) {
+		return targetToCompiledDialect.get(targetDialect);
+	}
+
+	public Set<String> getTargetDialects() {
+		return targetToCompiledDialect.keySet();
+	}
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the rule sets of any number of replacement pattern files side by side, so translations using different files can
+ * run at the same time without reloading each other's rules. Each file is parsed and compiled once. A file is checked for
+ * changes every time its rule set is requested: if its modification time or size has changed, its content hash is
+ * compared to the hash of the content the rule set was compiled from, and the rule set is only compiled again if the
+ * content differs.
+ */
+public class RuleSetRegistry {
+	private AtomicReference<RuleSet>			builtInRuleSet	= new AtomicReference<RuleSet>();
+	private ConcurrentHashMap<String, Entry>	pathToEntry		= new ConcurrentHashMap<String, Entry>();
+
+	private static class Entry {
+		public final long		lastModified;
+		public final long		length;
+		public final byte[]		hash;
+		public final RuleSet	ruleSet;
+
+		public Entry(long lastModified, long length, byte[] hash, RuleSet ruleSet) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.hash = hash;
+			this.ruleSet = ruleSet;
+		}
+	}
+
+	/**
+	 * Returns the rule set of a replacement pattern file, compiling it if the file hasn't been seen before or has changed.
+	 *
+	 * @param pathToReplacementPatterns
+	 *            The path of the csv file containing the replacement patterns. If null, the csv file inside the jar is
+	 *            used.
+	 * @return The rule set
+	 */
+	public RuleSet get(String pathToReplacementPatterns) {
+		if (pathToReplacementPatterns == null) {
+			RuleSet ruleSet = builtInRuleSet.get();
+			if (ruleSet != null)
+				return ruleSet;
+			builtInRuleSet.compareAndSet(null, RuleSet.load(null));
+			return builtInRuleSet.get();
+		}
+		File file = getFile(pathToReplacementPatterns);
+		Entry entry = pathToEntry.get(file.getPath());
+		if (entry != null && entry.lastModified == file.lastModified() && entry.length == file.length())
+			return entry.ruleSet;
+		return load(file, entry);
+	}
+
+	/**
+	 * Compiles the rule set of a replacement pattern file again, even if the file has not changed.
+	 *
+	 * @param pathToReplacementPatterns
+	 *            The path of the csv file containing the replacement patterns. If null, the csv file inside the jar is
+	 *            used.
+	 * @return The new rule set
+	 */
+	public RuleSet reload(String pathToReplacementPatterns) {
+		if (pathToReplacementPatterns == null) {
+			RuleSet ruleSet = RuleSet.load(null);
+			builtInRuleSet.set(ruleSet);
+			return ruleSet;
+		}
+		return load(getFile(pathToReplacementPatterns), null);
+	}
+
+	/**
+	 * Removes all rule sets loaded from files.
+	 */
+	public void clear() {
+		pathToEntry.clear();
+	}
+
+	private static File getFile(String path) {
+		return new File(path).getAbsoluteFile().toPath().normalize().toFile();
+	}
+
+	private RuleSet load(File file, Entry oldEntry) {
+		// Get the modification time before reading, so a change while reading is detected the next time:
+		long lastModified = file.lastModified();
+		long length = file.length();
+		byte[] content = readFile(file);
+		byte[] hash = hash(content);
+		RuleSet ruleSet;
+		if (oldEntry != null && Arrays.equals(oldEntry.hash, hash))
+			ruleSet = oldEntry.ruleSet;
+		else
+			try {
+				ruleSet = RuleSet.load(file.getPath(), new ByteArrayInputStream(content));
+			} catch (IOException e) {
+				throw new RuntimeException("Error loading replacement patterns from " + file.getPath(), e);
+			}
+		pathToEntry.put(file.getPath(), new Entry(lastModified, length, hash, ruleSet));
+		return ruleSet;
+	}
+
+	private static byte[] readFile(File file) {
+		try {
+			return Files.readAllBytes(file.toPath());
+		} catch (IOException e) {
+			throw new RuntimeException("Error loading replacement patterns from " + file.getPath(), e);
+		}
+	}
+
+	private static byte[] hash(byte[] content) {
+		try {
+			return MessageDigest.getInstance("SHA-256").digest(content);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -15,8 +15,10 @@
  ******************************************************************************/
 package org.ohdsi.sql;
 import java.util.ArrayList;
+import java.util.EmptyStackException;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Stack;
+import java.util.NoSuchElementException;
 
 public class SqlSplit {
 
@@ -29,46 +31,329 @@ public class SqlSplit {
 	 */
 	public static String[] splitSql(String sql) {
 		List<String> parts = new ArrayList<String>();
-		List<StringUtils.Token> tokens = StringUtils.tokenizeSql(sql.toLowerCase());
-		Stack<String> nestStack = new Stack<String>();
-		String lastPop = "";
-		int start = 0;
-		int cursor;
-		boolean quote = false;
-		boolean bracket = false;
-		String quoteText = "";
-		for (cursor = start; cursor < tokens.size(); cursor++) {
-			StringUtils.Token token = tokens.get(cursor);
-			if (quote) {
-				if (token.text.equals(quoteText)) {
-					quote = false;
-				}
-			} else if (bracket) {
-				if (token.text.equals("]"))
-					bracket = false;
-			} else if (token.text.equals("'") || token.text.equals("\"")) {
-				quote = true;
-				quoteText = token.text;
-			} else if (token.text.equals("[")) {
+		// Keywords are matched one character at a time in lower case. That is the same as matching them in the lower case
+		// SQL, unless lower casing the SQL changes its length or depends on the locale:
+		CharSequence tokenized = (sql.indexOf('\u0130') == -1 && !TokenBuffer.isContextSensitiveLocale()) ? sql : sql.toLowerCase();
+		StatementIterator statements = new StatementIterator(tokenized);
+		while (statements.nextStatement())
+			parts.add(sql.substring(statements.getStart(), statements.getEnd()));
+		return parts.toArray(new String[parts.size()]);
+	}
+
+	/**
+	 * Splits a string containing multiple SQL statements into statements, in the same way as splitSql, but lazily: the SQL
+	 * is only scanned up to the end of the statement that is asked for.
+	 * 
+	 * @param sql
+	 *            The SQL to split into separate statements
+	 * @return An iterator over the statements
+	 */
+	public static StatementIterator statements(CharSequence sql) {
+		return new StatementIterator(sql);
+	}
+
+	/**
+	 * Iterates over the statements in a SQL script. The statements are returned as views on the SQL, without copying it.
+	 * Callers that only need the positions of the statements can use nextStatement(), getStart(), and getEnd() instead, which
+	 * creates no objects at all.
+	 */
+	public static class StatementIterator implements Iterator<CharSequence> {
+		private CharSequence	sql;
+		private int				length;
+
+		// Tokenizer state, following StringUtils.tokenizeSql:
+		private int				cursor;
+		private int				wordStart;
+		private boolean			commentType1;	// Type 1: -- ... end of line
+		private boolean			commentType2;	// Type 2: /* .. */
+		private boolean			inSingleQuotes;
+		private boolean			inDoubleQuotes;
+
+		// The current token, and the token after it if it has been read already:
+		private int				tokenStart;
+		private int				tokenEnd;
+		private boolean			hasPeekedToken;
+		private boolean			peekedTokenExists;
+		private int				peekedStart;
+		private int				peekedEnd;
+
+		// Splitter state:
+		private boolean[]		nestIsBegin		= new boolean[16];	// True for begin, false for case
+		private int				nestDepth;
+		private boolean			lastPopWasBegin;
+		private boolean			previousWasEnd;
+		private boolean			isFirstToken	= true;
+		private boolean			quote;
+		private char			quoteChar;
+		private boolean			bracket;
+		private int				statementStart	= -1;
+		private int				lastTokenEnd;
+		private boolean			isAtStatementEnd;
+
+		// The statement that was found last:
+		private int				start			= -1;
+		private int				end				= -1;
+		private boolean			hasPendingStatement;
+
+		public StatementIterator(CharSequence sql) {
+			this(sql, true);
+		}
+
+		/**
+		 * @param isStartOfScript
+		 *            False if the SQL continues a script after the end of a statement, so a semicolon at the very start is
+		 *            not treated as the first token of the script.
+		 */
+		StatementIterator(CharSequence sql, boolean isStartOfScript) {
+			this.sql = sql;
+			length = sql.length();
+			isFirstToken = isStartOfScript;
+		}
+
+		/**
+		 * Moves to the next statement.
+		 * 
+		 * @return false if there are no more statements.
+		 */
+		public boolean nextStatement() {
+			if (hasPendingStatement) {
+				hasPendingStatement = false;
+				return true;
+			}
+			while (nextToken()) {
+				isAtStatementEnd = false;
+				if (statementStart == -1)
+					statementStart = tokenStart;
+				if (quote) {
+					if (isChar(quoteChar)) {
+						quote = false;
+					}
+				} else if (bracket) {
+					if (isChar(']'))
+						bracket = false;
+				} else if (isChar('\'') || isChar('"')) {
+					quote = true;
+					quoteChar = sql.charAt(tokenStart);
+				} else if (isChar('[')) {
 					bracket = true;
-			} else if (token.text.equals("begin") || token.text.equals("case")) {
-				nestStack.push(token.text);
-			} else if (token.text.equals("end") && (cursor == tokens.size() - 1 || !tokens.get(cursor + 1).text.equals("if"))) {
-				lastPop = nestStack.pop();
-			} else if (nestStack.size() == 0 && token.text.equals(";")) {
-				if (cursor == 0 || (tokens.get(cursor - 1).text.equals("end") && lastPop.equals("begin"))) { // oracle: must have ; after end belonging to a
-																												// begin
-					parts.add(sql.substring(tokens.get(start).start, token.end));
-				} else { // oracle: cannot have ; after anything but end
-					parts.add(sql.substring(tokens.get(start).start, token.end - 1));
+				} else if (isWord("begin") || isWord("case")) {
+					push(isWord("begin"));
+				} else if (isWord("end") && !nextTokenIsIf()) {
+					if (nestDepth == 0)
+						throw new EmptyStackException();
+					lastPopWasBegin = nestIsBegin[--nestDepth];
+				} else if (nestDepth == 0 && isChar(';')) {
+					// oracle: must have ; after end belonging to a begin, and cannot have ; after anything but end
+					boolean keepSemicolon = isFirstToken || (previousWasEnd && lastPopWasBegin);
+					start = statementStart;
+					end = keepSemicolon ? tokenEnd : tokenEnd - 1;
+					statementStart = -1;
+					previousWasEnd = false;
+					isFirstToken = false;
+					isAtStatementEnd = true;
+					return true;
 				}
-				start = cursor + 1;
+				previousWasEnd = isWord("end");
+				isFirstToken = false;
+			}
+			if (statementStart != -1) {
+				start = statementStart;
+				end = lastTokenEnd;
+				statementStart = -1;
+				return true;
 			}
+			return false;
 		}
-		if (start < cursor) {
-			parts.add(sql.substring(tokens.get(start).start, tokens.get(cursor - 1).end));
-			start = cursor + 1;
+
+		/**
+		 * The start of the current statement in the SQL.
+		 */
+		public int getStart() {
+			return start;
+		}
+
+		/**
+		 * The end (exclusive) of the current statement in the SQL.
+		 */
+		public int getEnd() {
+			return end;
+		}
+
+		/**
+		 * Returns true if the last token so far ended a statement, so splitting more SQL appended to this SQL would start
+		 * from a clean state.
+		 */
+		boolean isAtStatementEnd() {
+			return isAtStatementEnd;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!hasPendingStatement)
+				hasPendingStatement = nextStatement();
+			return hasPendingStatement;
+		}
+
+		@Override
+		public CharSequence next() {
+			if (!nextStatement())
+				throw new NoSuchElementException();
+			return new SqlView(sql, start, end);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void push(boolean isBegin) {
+			if (nestDepth == nestIsBegin.length) {
+				boolean[] newNestIsBegin = new boolean[nestDepth * 2];
+				System.arraycopy(nestIsBegin, 0, newNestIsBegin, 0, nestDepth);
+				nestIsBegin = newNestIsBegin;
+			}
+			nestIsBegin[nestDepth++] = isBegin;
+		}
+
+		private boolean isChar(char ch) {
+			return tokenEnd - tokenStart == 1 && sql.charAt(tokenStart) == ch;
+		}
+
+		private boolean isWord(String word) {
+			return matchesLowerCase(tokenStart, tokenEnd, word);
+		}
+
+		private boolean matchesLowerCase(int from, int to, String word) {
+			if (to - from != word.length())
+				return false;
+			for (int i = 0; i < word.length(); i++)
+				if (Character.toLowerCase(sql.charAt(from + i)) != word.charAt(i))
+					return false;
+			return true;
+		}
+
+		private boolean nextTokenIsIf() {
+			if (!hasPeekedToken) {
+				int currentStart = tokenStart;
+				int currentEnd = tokenEnd;
+				peekedTokenExists = readToken();
+				peekedStart = tokenStart;
+				peekedEnd = tokenEnd;
+				tokenStart = currentStart;
+				tokenEnd = currentEnd;
+				hasPeekedToken = true;
+			}
+			return peekedTokenExists && matchesLowerCase(peekedStart, peekedEnd, "if");
+		}
+
+		private boolean nextToken() {
+			boolean found;
+			if (hasPeekedToken) {
+				hasPeekedToken = false;
+				found = peekedTokenExists;
+				tokenStart = peekedStart;
+				tokenEnd = peekedEnd;
+			} else {
+				found = readToken();
+			}
+			if (found)
+				lastTokenEnd = tokenEnd;
+			return found;
+		}
+
+		/**
+		 * Reads the next token into tokenStart and tokenEnd.
+		 * 
+		 * @return false if there are no more tokens.
+		 */
+		private boolean readToken() {
+			for (; cursor < length; cursor++) {
+				char ch = sql.charAt(cursor);
+				if (commentType1) {
+					if (ch == '\n') {
+						commentType1 = false;
+						wordStart = cursor + 1;
+					}
+				} else if (commentType2) {
+					if (ch == '/' && cursor > 0 && sql.charAt(cursor - 1) == '*') {
+						commentType2 = false;
+						wordStart = cursor + 1;
+					}
+				} else if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '@') {
+					if (cursor > wordStart) {
+						// The character itself is looked at again when reading the next token:
+						tokenStart = wordStart;
+						tokenEnd = cursor;
+						wordStart = cursor;
+						return true;
+					}
+					if (ch == '-' && cursor < length - 1 && sql.charAt(cursor + 1) == '-' && !inSingleQuotes && !inDoubleQuotes
+							&& (length - cursor < 6 || !matchesLowerCase(cursor + 2, cursor + 6, StringUtils.HINT_KEY_WORD))) {
+						commentType1 = true;
+					} else if (ch == '/' && cursor < length - 1 && sql.charAt(cursor + 1) == '*' && !inSingleQuotes && !inDoubleQuotes) {
+						commentType2 = true;
+					} else if (!Character.isWhitespace(ch)) {
+						if (ch == '\'' && !inDoubleQuotes) {
+							inSingleQuotes = !inSingleQuotes;
+						}
+						if (ch == '"' && !inSingleQuotes) {
+							inDoubleQuotes = !inDoubleQuotes;
+						}
+						tokenStart = cursor;
+						tokenEnd = cursor + 1;
+						cursor++;
+						wordStart = cursor;
+						return true;
+					}
+					wordStart = cursor + 1;
+				}
+			}
+			if (cursor > wordStart && !commentType1 && !commentType2) {
+				tokenStart = wordStart;
+				tokenEnd = cursor;
+				wordStart = cursor;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A part of a character sequence, without a copy of the characters.
+	 */
+	private static class SqlView implements CharSequence {
+		private CharSequence	sql;
+		private int				start;
+		private int				end;
+
+		public SqlView(CharSequence sql, int start, int end) {
+			this.sql = sql;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= end - start)
+				throw new IndexOutOfBoundsException("index " + index + ", length " + (end - start));
+			return sql.charAt(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > end - start || from > to)
+				throw new IndexOutOfBoundsException("begin " + from + ", end " + to + ", length " + (end - start));
+			return new SqlView(sql, start + from, start + to);
+		}
+
+		@Override
+		public String toString() {
+			return sql.subSequence(start, end).toString();
 		}
-		return parts.toArray(new String[parts.size()]);
 	}
 }
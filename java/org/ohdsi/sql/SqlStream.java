@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Renders and translates SQL scripts that are too large to hold in memory. The script is read a few statements at a time
+ * (see StatementChunks), and these are rendered and translated on their own and written out before the next ones are read,
+ * so memory use depends on the size of the largest statement rather than the size of the script. The result is the same
+ * as when the script is rendered and translated at once.<br/>
+ * <br/>
+ * Chunks never split an if-then-else block. A default ({DEFAULT &#64;a = b}) only applies from where it is declared, so a
+ * script that uses a parameter before declaring its default can't be streamed, and an exception is thrown when the
+ * declaration is reached.<br/>
+ * <br/>
+ * Some scripts can't be translated in chunks: the scripts for target dialects with steps that work on the whole script
+ * (BigQuery, Impala, and Spark) or with rules that can match across the end of a statement, and scripts where applying a
+ * rule changes the end of a chunk. Those are collected in memory, from the point where this becomes clear, and translated
+ * at once. The same goes for scripts where lower casing can change the length of the SQL (a capital I with a dot, or a
+ * Turkish, Azerbaijani, or Lithuanian default locale), as TranslatedStatementIterator does.
+ */
+public class SqlStream {
+	// Statements are handled in chunks of at least this many characters, so the cost per call is spread over many statements:
+	private static final int MIN_CHUNK_LENGTH = 65536;
+
+	/**
+	 * Renders the chunks of a script one after the other, with the defaults declared so far.
+	 */
+	private static class ChunkRenderer {
+		private Map<String, String>	parameterToValue	= new HashMap<String, String>();
+		private Map<String, String>	defaults			= new HashMap<String, String>();
+		// The words following an @-sign in the chunks rendered so far:
+		private Set<String>			usedNames			= new HashSet<String>();
+
+		public ChunkRenderer(String[] parameters, String[] values) {
+			for (int i = 0; i < parameters.length; i++)
+				parameterToValue.put(parameters[i], values[i]);
+		}
+
+		public String render(String sql) {
+			for (Map.Entry<String, String> pair : SqlRender.extractDefaults(sql).entrySet()) {
+				String name = pair.getKey();
+				if (parameterToValue.containsKey(name) || pair.getValue().equals(defaults.get(name)))
+					continue;
+				// A parameter is replaced wherever its name follows an @-sign, even at the start of a longer word:
+				for (String usedName : usedNames)
+					if (usedName.startsWith(name))
+						throw new RuntimeException("The default of parameter '" + name
+								+ "' is declared after the parameter is used. Declare the default earlier, or don't stream the SQL");
+				// Later defaults replace earlier ones, as when the script is rendered at once:
+				defaults.put(name, pair.getValue());
+			}
+			addUsedNames(SqlRender.removeDefaults(sql));
+			Map<String, String> chunkParameterToValue = new HashMap<String, String>(parameterToValue);
+			for (Map.Entry<String, String> pair : defaults.entrySet())
+				if (!chunkParameterToValue.containsKey(pair.getKey()))
+					chunkParameterToValue.put(pair.getKey(), pair.getValue());
+			String renderedSql = SqlRender.renderSql(sql, chunkParameterToValue);
+			// Parameter values can bring in new parameter names:
+			addUsedNames(renderedSql);
+			return renderedSql;
+		}
+
+		private void addUsedNames(String sql) {
+			for (int at = sql.indexOf('@'); at != -1; at = sql.indexOf('@', at + 1)) {
+				int end = at + 1;
+				while (end < sql.length() && (Character.isLetterOrDigit(sql.charAt(end)) || sql.charAt(end) == '_'))
+					end++;
+				usedNames.add(sql.substring(at + 1, end));
+			}
+		}
+	}
+
+	/**
+	 * Renders and translates SQL read from a reader, writing the result to a writer statement by statement.
+	 *
+	 * @param in
+	 *            The parameterized SQL
+	 * @param out
+	 *            Where the rendered and translated SQL is written. The writer is flushed, but not closed.
+	 * @param parameters
+	 *            The names of the parameters (without the &#64;-sign). If null, the SQL is not rendered.
+	 * @param values
+	 *            The values of the parameters.
+	 * @param targetDialect
+	 *            The target dialect. If null, the SQL is not translated.
+	 * @param sessionId
+	 *            An alphanumeric string to be used when generating unique table names. If null, the global session ID is
+	 *            used.
+	 * @param tempEmulationSchema
+	 *            The name of a schema where temp tables can be created for those platforms that don't support temp tables
+	 *            natively. When null, the current schema is assumed to be the temp schema.
+	 * @param pathToReplacementPatterns
+	 *            The absolute path of the csv file containing the replacement patterns. If null, the csv file inside the
+	 *            jar is used.
+	 */
+	public static void renderAndTranslate(Reader in, Writer out, String[] parameters, String[] values, String targetDialect,
+			String sessionId, String tempEmulationSchema, String pathToReplacementPatterns) throws IOException {
+		StatementChunks statementChunks = new StatementChunks(in, parameters != null);
+		ChunkRenderer renderer = parameters == null ? null : new ChunkRenderer(parameters, values);
+		if (targetDialect == null) {
+			for (String sql = nextChunk(statementChunks, renderer); sql != null; sql = nextChunk(statementChunks, renderer))
+				out.write(sql);
+			out.flush();
+			return;
+		}
+		RuleSet rules = SqlTranslate.ensurePatternsAreLoaded(pathToReplacementPatterns);
+		CompiledDialect compiledDialect = SqlTranslate.getCompiledDialect(rules, targetDialect);
+		if (sessionId == null)
+			sessionId = SqlTranslate.getGlobalSessionId();
+		else
+			SqlTranslate.validateSessionId(sessionId);
+		String oracleTempPrefix = tempEmulationSchema == null ? "" : tempEmulationSchema + ".";
+
+		boolean hasSimpleLowerCase = (tempEmulationSchema == null || tempEmulationSchema.indexOf('\u0130') == -1)
+				&& !TokenBuffer.isContextSensitiveLocale();
+		if (!hasSimpleLowerCase || SqlTranslate.hasScriptLevelSteps(targetDialect) || compiledDialect.hasRulesSpanningStatements()) {
+			String sql = remainingChunks(null, statementChunks, renderer);
+			out.write(SqlTranslate.translateSqlWithPath(sql, targetDialect, sessionId, tempEmulationSchema, pathToReplacementPatterns));
+			out.flush();
+			return;
+		}
+		// Only the last chunk may end in a way that is not the end of a statement, so read one chunk ahead:
+		String sql = nextChunk(statementChunks, renderer);
+		while (sql != null) {
+			String nextSql = nextChunk(statementChunks, renderer);
+			String translatedSql = null;
+			if (sql.indexOf('\u0130') == -1)
+				translatedSql = SqlTranslate.translateChunk(sql, compiledDialect, sessionId, oracleTempPrefix, nextSql == null);
+			if (translatedSql == null) {
+				// Applying a rule changed the end of the chunk, or lower casing changes its length. Translate the rest of the
+				// script at once:
+				sql = remainingChunks(nextSql == null ? sql : sql + nextSql, statementChunks, renderer);
+				translatedSql = SqlTranslate.translateChunk(sql, compiledDialect, sessionId, oracleTempPrefix, true);
+				nextSql = null;
+			}
+			out.write(translatedSql);
+			sql = nextSql;
+		}
+		out.flush();
+	}
+
+	private static String remainingChunks(String sql, StatementChunks statementChunks, ChunkRenderer renderer) throws IOException {
+		StringBuilder remaining = new StringBuilder();
+		if (sql != null)
+			remaining.append(sql);
+		for (String chunk = nextChunk(statementChunks, renderer); chunk != null; chunk = nextChunk(statementChunks, renderer))
+			remaining.append(chunk);
+		return remaining.toString();
+	}
+
+	private static String nextChunk(StatementChunks statementChunks, ChunkRenderer renderer) throws IOException {
+		String statements = statementChunks.next();
+		if (statements != null && statements.length() < MIN_CHUNK_LENGTH) {
+			StringBuilder chunk = new StringBuilder(statements);
+			while (chunk.length() < MIN_CHUNK_LENGTH) {
+				statements = statementChunks.next();
+				if (statements == null)
+					break;
+				chunk.append(statements);
+			}
+			statements = chunk.toString();
+		}
+		if (statements == null || renderer == null)
+			return statements;
+		return renderer.render(statements);
+	}
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.util.Arrays;
+
+/**
+ * The tokens of a SQL string, as produced by StringUtils.tokenizeSql, but stored in parallel arrays of primitives instead of
+ * a list of Token objects. The text of a token is not copied; it is compared in place, and only turned into a string when
+ * asked for.<br/>
+ * <br/>
+ * Along with its start and end, the hash code of the text of each token is kept, so comparing a token with a string usually
+ * doesn't require looking at the characters.
+ */
+public class SqlTokens {
+	private static final int	IN_QUOTES	= 1;
+	private static final int	SPECIAL		= 2;	// Single non-alphanumeric character token
+
+	private CharSequence		sql;
+	private int					offset;
+	private int					count;
+	private int[]				starts;
+	private int[]				ends;
+	private int[]				hashes;
+	private byte[]				flags;
+
+	/**
+	 * Tokenizes the SQL.
+	 */
+	public SqlTokens(CharSequence sql) {
+		this(sql, 0, sql.length());
+	}
+
+	/**
+	 * Tokenizes part of the SQL, giving the same tokens as tokenizing sql.subSequence(start, end). Token offsets are relative
+	 * to the start of the part.
+	 */
+	public SqlTokens(CharSequence sql, int start, int end) {
+		this.sql = sql;
+		offset = start;
+		int capacity = Math.max(16, (end - start) / 4);
+		starts = new int[capacity];
+		ends = new int[capacity];
+		hashes = new int[capacity];
+		flags = new byte[capacity];
+		tokenize(sql, start, end, this);
+	}
+
+	/**
+	 * Counts the tokens in the SQL without storing them.
+	 */
+	public static int countTokens(CharSequence sql) {
+		return tokenize(sql, 0, sql.length(), null);
+	}
+
+	/**
+	 * Counts the tokens in part of the SQL without storing them, giving the same count as for sql.subSequence(start, end).
+	 */
+	public static int countTokens(CharSequence sql, int start, int end) {
+		return tokenize(sql, start, end, null);
+	}
+
+	/**
+	 * Follows StringUtils.tokenizeSql exactly. Tokens are added to the target, if there is one.
+	 *
+	 * @return The number of tokens.
+	 */
+	private static int tokenize(CharSequence sql, int from, int to, SqlTokens target) {
+		int tokenCount = 0;
+		int start = from;
+		int cursor = from;
+		boolean commentType1 = false; // Type 1: -- ... end of line
+		boolean commentType2 = false; // Type 2: /* .. */
+		boolean inSingleQuotes = false;
+		boolean inDoubleQuotes = false;
+		for (; cursor < to; cursor++) {
+			char ch = sql.charAt(cursor);
+			if (commentType1) {
+				if (ch == '\n') {
+					commentType1 = false;
+					start = cursor + 1;
+				}
+			} else if (commentType2) {
+				if (ch == '/' && cursor > from && sql.charAt(cursor - 1) == '*') {
+					commentType2 = false;
+					start = cursor + 1;
+				}
+			} else if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '@') {
+				if (cursor > start) {
+					if (target != null)
+						target.add(start, cursor, (inSingleQuotes || inDoubleQuotes) ? IN_QUOTES : 0);
+					tokenCount++;
+				}
+				if (ch == '-' && cursor < to - 1 && sql.charAt(cursor + 1) == '-' && !inSingleQuotes && !inDoubleQuotes
+						&& (to - cursor < 6 || !isHint(sql, cursor + 2))) {
+					commentType1 = true;
+				} else if (ch == '/' && cursor < to - 1 && sql.charAt(cursor + 1) == '*' && !inSingleQuotes && !inDoubleQuotes) {
+					commentType2 = true;
+				} else if (!Character.isWhitespace(ch)) {
+					if (target != null)
+						target.add(cursor, cursor + 1, SPECIAL | ((inSingleQuotes || inDoubleQuotes) ? IN_QUOTES : 0));
+					tokenCount++;
+					if (ch == '\'' && !inDoubleQuotes) {
+						inSingleQuotes = !inSingleQuotes;
+					}
+					if (ch == '"' && !inSingleQuotes) {
+						inDoubleQuotes = !inDoubleQuotes;
+					}
+				}
+				start = cursor + 1;
+			}
+		}
+		if (cursor > start && !commentType1 && !commentType2) {
+			if (target != null)
+				target.add(start, cursor, (inSingleQuotes || inDoubleQuotes) ? IN_QUOTES : 0);
+			tokenCount++;
+		}
+		return tokenCount;
+	}
+
+	private static boolean isHint(CharSequence sql, int position) {
+		String hint = StringUtils.HINT_KEY_WORD;
+		for (int i = 0; i < hint.length(); i++)
+			if (sql.charAt(position + i) != hint.charAt(i))
+				return false;
+		return true;
+	}
+
+	private void add(int start, int end, int tokenFlags) {
+		if (count == starts.length) {
+			int capacity = count * 2;
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			hashes = Arrays.copyOf(hashes, capacity);
+			flags = Arrays.copyOf(flags, capacity);
+		}
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + sql.charAt(i);
+		starts[count] = start - offset;
+		ends[count] = end - offset;
+		hashes[count] = hash;
+		flags[count] = (byte) tokenFlags;
+		count++;
+	}
+
+	public int getTokenCount() {
+		return count;
+	}
+
+	public int getStart(int token) {
+		return starts[token];
+	}
+
+	public int getEnd(int token) {
+		return ends[token];
+	}
+
+	public boolean isInQuotes(int token) {
+		return (flags[token] & IN_QUOTES) != 0;
+	}
+
+	/**
+	 * Returns the hash code of the text of the token. This is the same as getText(token).hashCode().
+	 */
+	public int getHash(int token) {
+		return hashes[token];
+	}
+
+	/**
+	 * Returns the text of the token as a new string. Prefer the comparison methods where possible.
+	 */
+	public String getText(int token) {
+		return sql.subSequence(starts[token] + offset, ends[token] + offset).toString();
+	}
+
+	public char charAt(int token, int index) {
+		return sql.charAt(starts[token] + offset + index);
+	}
+
+	public int length(int token) {
+		return ends[token] - starts[token];
+	}
+
+	/**
+	 * Returns true if the text of the token equals the string.
+	 */
+	public boolean textEquals(int token, String text) {
+		if (hashes[token] != text.hashCode() || length(token) != text.length())
+			return false;
+		int start = starts[token] + offset;
+		for (int i = 0; i < text.length(); i++)
+			if (sql.charAt(start + i) != text.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Returns true if the text of the token equals the string, ignoring case the way String.equalsIgnoreCase does.
+	 */
+	public boolean textEqualsIgnoreCase(int token, String text) {
+		if (length(token) != text.length())
+			return false;
+		int start = starts[token] + offset;
+		for (int i = 0; i < text.length(); i++) {
+			char ch1 = sql.charAt(start + i);
+			char ch2 = text.charAt(i);
+			if (ch1 != ch2) {
+				ch1 = Character.toUpperCase(ch1);
+				ch2 = Character.toUpperCase(ch2);
+				if (ch1 != ch2 && Character.toLowerCase(ch1) != Character.toLowerCase(ch2))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the text of the token starts with the character.
+	 */
+	public boolean startsWith(int token, char ch) {
+		return sql.charAt(starts[token] + offset) == ch;
+	}
+
+	/**
+	 * Returns true if the token consists of letters, digits, and underscores only, like StringUtils.Token.isIdentifier.
+	 */
+	public boolean isIdentifier(int token) {
+		int start = starts[token] + offset;
+		int end = ends[token] + offset;
+		for (int i = start; i < end; i++) {
+			char ch = sql.charAt(i);
+			if (!Character.isLetterOrDigit(ch) && ch != '_') {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -15,38 +15,54 @@
  ******************************************************************************/
 package org.ohdsi.sql;
 
-import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
-import java.util.Stack;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class SqlTranslate {
 	public static int SESSION_ID_LENGTH = 8;
 	public static int MAX_TABLE_NAME_LENGTH = 63; // PostreSQL default limit
-	private static Map<String, List<String[]>> targetToReplacementPatterns = null;
-	private static ReentrantLock lock = new ReentrantLock();
+	private static RuleSetRegistry ruleSetRegistry = new RuleSetRegistry();
+	private static AtomicReference<RuleSet> ruleSet = new AtomicReference<RuleSet>();
+	private static volatile TranslationCache translationCache = null;
 	private static Random random = new Random();
 	private static String globalSessionId = null;
 	private static String BIG_QUERY = "bigquery";
 	private static String IMPALA = "impala";
 	private static String SPARK = "spark";
+	private static Pattern BLANK_LINE = Pattern.compile("(?m)^[ \t]*\r?\n");
+	private static Pattern TRAILING_WHITE_SPACE = Pattern.compile("\\s$");
+	private static int MAX_CACHED_REGEXES = 1000;
+	private static int MIN_CHUNK_LENGTH = 1000;
+	private static Map<String, Pattern> regExToPattern = Collections
+			.synchronizedMap(new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+					return size() > MAX_CACHED_REGEXES;
+				}
+			});
 
 	protected static class Block extends StringUtils.Token {
 		public boolean isVariable;
 		public String regEx;
+		public Pattern pattern;
 
 		public Block(StringUtils.Token other) {
 			super(other);
@@ -84,6 +100,7 @@ public class SqlTranslate {
 						if (nesting == 0) {
 							block.text = "@@" + tokens.get(j + 1).text;
 							block.regEx = pattern.substring(tokens.get(i + 1).end, tokens.get(j).start);
+							block.pattern = compileRegEx(block.regEx);
 							block.end = tokens.get(j + 1).end;
 							block.isVariable = true;
 							i = j + 1;
@@ -103,86 +120,103 @@ public class SqlTranslate {
 		return blocks;
 	}
 
+	/**
+	 * Compiles the regular expression of a regex variable. Compiled patterns are kept in a bounded cache shared by all
+	 * threads, so each regular expression is compiled only once, even when the replacement patterns are reloaded.
+	 */
+	private static Pattern compileRegEx(String regEx) {
+		Pattern pattern = regExToPattern.get(regEx);
+		if (pattern == null) {
+			pattern = Pattern.compile(regEx, Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.MULTILINE);
+			regExToPattern.put(regEx, pattern);
+		}
+		return pattern;
+	}
+
 	protected static MatchedPattern search(String sql, List<Block> parsedPattern, int startToken) {
-		String lowercaseSql = sql.toLowerCase();
-		List<StringUtils.Token> tokens = StringUtils.tokenizeSql(lowercaseSql);
+		return search(new TokenBuffer(sql), parsedPattern, startToken);
+	}
+
+	protected static MatchedPattern search(TokenBuffer sql, List<Block> parsedPattern, int startToken) {
+		int tokenCount = sql.getTokenCount();
 		int matchCount = 0;
 		int varStart = 0;
-		Stack<String> nestStack = new Stack<String>();
+		ArrayDeque<String> nestStack = new ArrayDeque<String>();
 		boolean inPatternQuote = false;
 		MatchedPattern matchedPattern = new MatchedPattern();
-		for (int cursor = startToken; cursor < tokens.size(); cursor++) {
-			StringUtils.Token token = tokens.get(cursor);
+		for (int cursor = startToken; cursor < tokenCount; cursor++) {
+			int tokenStart = sql.getStart(cursor);
+			int tokenEnd = sql.getEnd(cursor);
+			int tokenCharacter = sql.getCharacter(cursor);
 			if (parsedPattern.get(matchCount).isVariable) {
 				if (parsedPattern.get(matchCount).regEx != null
 						&& (matchCount == parsedPattern.size() - 1 || parsedPattern.get(matchCount + 1).isVariable)) {
 					// Regex variable at end of pattern, or has another variable following it
-					Pattern pattern = Pattern.compile(parsedPattern.get(matchCount).regEx,
-							Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.MULTILINE);
-					Matcher matcher = pattern.matcher(sql.substring(token.start));
-					if (matcher.find() && matcher.start() == 0) {
+					Matcher matcher = parsedPattern.get(matchCount).pattern.matcher(sql);
+					matcher.region(tokenStart, sql.length());
+					if (matcher.lookingAt()) {
 						if (matchCount == 0) {
-							matchedPattern.start = token.start;
+							matchedPattern.start = tokenStart;
 							matchedPattern.startToken = cursor;
 						}
 						matchedPattern.variableToValue.put(parsedPattern.get(matchCount).text,
-								sql.substring(token.start, token.start + matcher.end()));
+								sql.substring(tokenStart, matcher.end()));
 						matchCount++;
 						if (matchCount == parsedPattern.size()) {
-							matchedPattern.end = token.start + matcher.end();
+							matchedPattern.end = matcher.end();
 							return matchedPattern;
 						} else if (parsedPattern.get(matchCount).isVariable) {
-							varStart = token.start + matcher.end();
+							varStart = matcher.end();
 						}
 						// Fast forward cursor to after matched patterns:
-						while (cursor < tokens.size() && tokens.get(cursor).start < token.start + matcher.end())
+						while (cursor < tokenCount && sql.getStart(cursor) < matcher.end())
 							cursor++;
 						cursor--;
 					} else {
 						matchCount = 0;
 					}
 				} else if (nestStack.size() == 0 && matchCount < parsedPattern.size() - 1
-						&& token.text.equals(parsedPattern.get(matchCount + 1).text)) {
+						&& sql.textEquals(cursor, parsedPattern.get(matchCount + 1).text)) {
 					// Found the token after the variable
 					if (parsedPattern.get(matchCount).regEx != null && matchCount == 0) {
 						// First element of pattern is a regEx. Find last part of string prior to subsequent token that matches regEx:
-						int start = matchesEnd(parsedPattern.get(matchCount).regEx, sql.substring(varStart, token.start));
+						int start = matchesEnd(parsedPattern.get(matchCount).pattern, sql, varStart, tokenStart);
 						if (start != -1) {
 							matchedPattern.variableToValue.put(parsedPattern.get(matchCount).text,
-									sql.substring(start + varStart, token.start));
+									sql.substring(start + varStart, tokenStart));
 							matchedPattern.start = start + varStart;
 							matchedPattern.startToken = cursor;
 							matchCount += 2;
 							if (matchCount == parsedPattern.size()) {
-								matchedPattern.end = token.end;
+								matchedPattern.end = tokenEnd;
 								return matchedPattern;
 							} else if (parsedPattern.get(matchCount).isVariable) {
-								varStart = (cursor < tokens.size() - 1) ? tokens.get(cursor + 1).start : -1;
+								varStart = (cursor < tokenCount - 1) ? sql.getStart(cursor + 1) : -1;
 							}
-							if (token.text.equals("'") || token.text.equals("'"))
+							if (tokenCharacter == '\'')
 								inPatternQuote = !inPatternQuote;
 						}
 					} else if (parsedPattern.get(matchCount).regEx != null
-							&& !matches(parsedPattern.get(matchCount).regEx, sql.substring(varStart, token.start))) {
+							&& !matches(parsedPattern.get(matchCount).pattern, sql, varStart, tokenStart)) {
 						// Content didn't match regex
 						matchCount = 0;
 						cursor = matchedPattern.startToken;
 					} else {
 						// No regex or matched regex
 						matchedPattern.variableToValue.put(parsedPattern.get(matchCount).text,
-								sql.substring(varStart, token.start));
+								sql.substring(varStart, tokenStart));
 						matchCount += 2;
 						if (matchCount == parsedPattern.size()) {
-							matchedPattern.end = token.end;
+							matchedPattern.end = tokenEnd;
 							return matchedPattern;
 						} else if (parsedPattern.get(matchCount).isVariable) {
-							varStart = (cursor < tokens.size() - 1) ? tokens.get(cursor + 1).start : -1;
+							varStart = (cursor < tokenCount - 1) ? sql.getStart(cursor + 1) : -1;
 						}
-						if (token.text.equals("'") || token.text.equals("'"))
+						if (tokenCharacter == '\'')
 							inPatternQuote = !inPatternQuote;
 					}
 				} else if (matchCount != 0 && nestStack.size() == 0 && !inPatternQuote
-						&& (token.text.equals(";") || token.text.equals(")"))) { // Not allowed to span multiple SQL
+						&& (tokenCharacter == ';' || tokenCharacter == ')')) { // Not allowed to span multiple SQL
 					// statements or outside of nesting
 					matchCount = 0;
 					cursor = matchedPattern.startToken;
@@ -190,14 +224,16 @@ public class SqlTranslate {
 					if (nestStack.size() != 0 && (nestStack.peek().equals("\"") || nestStack.peek().equals("'"))) { // inside
 						// quoted
 						// string
-						if (token.text.equals(nestStack.peek()))
+						if (tokenCharacter == nestStack.peek().charAt(0))
 							nestStack.pop();
 					} else {
-						if (token.text.equals("\"") || token.text.equals("'")) {
-							nestStack.push(token.text);
-						} else if (!inPatternQuote && token.text.equals("(")) {
-							nestStack.push(token.text);
-						} else if (!inPatternQuote && nestStack.size() != 0 && token.text.equals(")")
+						if (tokenCharacter == '"') {
+							nestStack.push("\"");
+						} else if (tokenCharacter == '\'') {
+							nestStack.push("'");
+						} else if (!inPatternQuote && tokenCharacter == '(') {
+							nestStack.push("(");
+						} else if (!inPatternQuote && nestStack.size() != 0 && tokenCharacter == ')'
 								&& nestStack.peek().equals("(")) {
 							nestStack.pop();
 						}
@@ -206,26 +242,26 @@ public class SqlTranslate {
 			} else {
 				// Check if token matches current part of pattern. But first part cannot be
 				// within quotes:
-				if (token.text.equals(parsedPattern.get(matchCount).text) && (matchCount != 0 || !token.inQuotes)) {
+				if (sql.textEquals(cursor, parsedPattern.get(matchCount).text) && (matchCount != 0 || !sql.isInQuotes(cursor))) {
 					if (matchCount == 0) {
-						matchedPattern.start = token.start;
+						matchedPattern.start = tokenStart;
 						matchedPattern.startToken = cursor;
 					}
 					matchCount++;
 					if (matchCount == parsedPattern.size()) {
-						matchedPattern.end = token.end;
+						matchedPattern.end = tokenEnd;
 						return matchedPattern;
 					} else if (parsedPattern.get(matchCount).isVariable) {
-						varStart = (cursor < tokens.size() - 1) ? tokens.get(cursor + 1).start : -1;
+						varStart = (cursor < tokenCount - 1) ? sql.getStart(cursor + 1) : -1;
 					}
-					if (token.text.equals("'") || token.text.equals("\""))
+					if (tokenCharacter == '\'' || tokenCharacter == '"')
 						inPatternQuote = !inPatternQuote;
 				} else if (matchCount != 0) {
 					matchCount = 0;
 					cursor = matchedPattern.startToken;
 				}
 			}
-			if (matchCount != 0 && cursor == tokens.size() - 1) { // If at end of sql and still didn't finish pattern,
+			if (matchCount != 0 && cursor == tokenCount - 1) { // If at end of sql and still didn't finish pattern,
 				// we're not going to finish it
 				matchCount = 0;
 				cursor = matchedPattern.startToken;
@@ -235,57 +271,198 @@ public class SqlTranslate {
 		return matchedPattern;
 	}
 
-	private static boolean matches(String regex, String string) {
-		Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.MULTILINE);
-		Matcher matcher = pattern.matcher(string);
+	/**
+	 * Checks whether the part of the SQL between start and end matches the pattern. The matcher is limited to that region
+	 * (with anchoring, opaque bounds) so the result is the same as matching a substring, without copying it.
+	 */
+	private static boolean matches(Pattern pattern, CharSequence sql, int start, int end) {
+		Matcher matcher = pattern.matcher(sql);
+		matcher.region(start, end);
 		return (matcher.matches());
 	}
 
-	private static int matchesEnd(String regex, String string) {
-		string = string.replaceAll("\\s$", "");
-		Pattern pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.MULTILINE);
-		Matcher matcher = pattern.matcher(string);
-		int start = -1;
+	/**
+	 * Finds the start of the last match of the pattern that ends at the end of the region, ignoring trailing white space
+	 * the same way string.replaceAll("\\s$", "") does.
+	 *
+	 * @return The start of the match, relative to the start of the region, or -1 if there is no such match.
+	 */
+	private static int matchesEnd(Pattern pattern, CharSequence sql, int start, int end) {
+		// "\\s$" can only match in the last three characters, because $ matches at the end or before a final line break:
+		int tailStart = Math.max(start, end - 3);
+		String tail = sql.subSequence(tailStart, end).toString();
+		String trimmedTail = TRAILING_WHITE_SPACE.matcher(tail).replaceAll("");
+		if (!tail.startsWith(trimmedTail)) {
+			// Characters were removed from the middle of the tail (a space before a Unicode line separator). Match the trimmed string:
+			String string = sql.subSequence(start, tailStart).toString() + trimmedTail;
+			Matcher matcher = pattern.matcher(string);
+			int matchStart = -1;
+			while (matcher.find()) {
+				if (matcher.end() == string.length())
+					matchStart = matcher.start();
+			}
+			return matchStart;
+		}
+		int trimmedEnd = tailStart + trimmedTail.length();
+		Matcher matcher = pattern.matcher(sql);
+		matcher.region(start, trimmedEnd);
+		int matchStart = -1;
 		while (matcher.find()) {
-			if (matcher.end() == string.length())
-				start = matcher.start();
+			if (matcher.end() == trimmedEnd)
+				matchStart = matcher.start() - start;
 		}
-		return start;
+		return matchStart;
 	}
 
-	private static String searchAndReplace(String sql, List<Block> parsedPattern, String replacePattern) {
-		MatchedPattern matchedPattern = search(sql, parsedPattern, 0);
+	/**
+	 * Replaces all matches of the pattern in place.
+	 *
+	 * @return true if at least one match was replaced
+	 */
+	private static boolean searchAndReplace(TokenBuffer sql, List<Block> parsedPattern,
+			CompiledDialect.ReplacementTemplate replacePattern, String sessionId, String oracleTempPrefix, int startToken) {
+		boolean replaced = false;
+		MatchedPattern matchedPattern = search(sql, parsedPattern, startToken);
 		while (matchedPattern.start != -1) {
-			String replacement = replacePattern;
-			for (Map.Entry<String, String> pair : matchedPattern.variableToValue.entrySet())
-				replacement = StringUtils.replaceAll(replacement, pair.getKey(), pair.getValue());
-			sql = sql.substring(0, matchedPattern.start) + replacement
-					+ sql.substring(matchedPattern.end, sql.length());
+			String replacement = replacePattern.fill(matchedPattern.variableToValue, sessionId, oracleTempPrefix);
+			sql.replace(matchedPattern.start, matchedPattern.end, replacement);
+			replaced = true;
 			// System.out.println(sql);
 			int delta = 1;
-			if (StringUtils.tokenizeSql(replacement).size() == 0)
+			if (SqlTokens.countTokens(replacement) == 0)
 				delta = 0;
 			// Special situation: if replacement pattern starts with variable, and variable
 			// content starts with start of search pattern, don't
 			// skip first token:
-			if (delta > 0 && replacePattern.startsWith("@@")
+			if (delta > 0 && replacePattern.startsWithVariable()
 					&& replacement.toLowerCase().trim().startsWith(parsedPattern.get(0).text))
 				delta = 0;
 			matchedPattern = search(sql, parsedPattern, matchedPattern.startToken + delta);
 		}
-		return sql;
+		return replaced;
+	}
+
+	/**
+	 * Removes blank lines in place. Lines are removed from last to first so the offsets of the remaining matches stay
+	 * valid.
+	 */
+	private static void removeBlankLines(TokenBuffer sql) {
+		Matcher matcher = BLANK_LINE.matcher(sql);
+		List<int[]> blankLines = new ArrayList<int[]>();
+		while (matcher.find())
+			blankLines.add(new int[] { matcher.start(), matcher.end() });
+		for (int i = blankLines.size() - 1; i >= 0; i--)
+			sql.replace(blankLines.get(i)[0], blankLines.get(i)[1], "");
+	}
+
+	/**
+	 * A rule can only match if every literal token of its search pattern occurs in the SQL. Checking the token counts is much
+	 * cheaper than scanning all tokens, and most rules of a dialect don't apply to a given script.
+	 */
+	private static boolean hasRequiredTokens(TokenBuffer sql, CompiledDialect.Rule rule) {
+		for (String token : rule.requiredTokens)
+			if (sql.getTokenCount(token) == 0)
+				return false;
+		return true;
 	}
 
-	private static String translateSql(String sql, List<String[]> replacementPatterns, String sessionId,
+	private static String translateSql(String sql, CompiledDialect compiledDialect, String sessionId,
 			String oracleTempPrefix) {
-		for (int i = 0; i < replacementPatterns.size(); i++) {
-			String[] pair = replacementPatterns.get(i).clone();
-			pair[1] = pair[1].replace("%session_id%", sessionId);
-			pair[1] = pair[1].replace("%temp_prefix%", oracleTempPrefix);
-			List<Block> parsedPattern = parseSearchPattern(pair[0]);
-			sql = searchAndReplace(sql, parsedPattern, pair[1]).replaceAll("(?m)^[ \t]*\r?\n", ""); // removes blank lines from each sql statement
+		return translateSql(sql, compiledDialect, sessionId, oracleTempPrefix, false);
+	}
+
+	/**
+	 * @param isChunk
+	 *            If true, the SQL is a chunk of a script as split by StatementChunks, and null is returned as soon as it
+	 *            no longer ends like one.
+	 */
+	private static String translateSql(String sql, CompiledDialect compiledDialect, String sessionId,
+			String oracleTempPrefix, boolean isChunk) {
+		TokenBuffer buffer = new TokenBuffer(sql);
+		List<CompiledDialect.Rule> rules = compiledDialect.getRules();
+		RuleCandidates candidates = new RuleCandidates(compiledDialect.getPrefixAutomaton(), buffer);
+		// Removing blank lines again does nothing when the SQL hasn't changed since they were last removed:
+		boolean hasBlankLinesRemoved = false;
+		for (int i = 0; i < rules.size(); i++) {
+			CompiledDialect.Rule rule = rules.get(i);
+			if (rule.parseError != null)
+				throw new RuntimeException(rule.parseError);
+			candidates.update(buffer, i);
+			int startToken = candidates.getStartToken(buffer, i);
+			if ((startToken != -1 && hasRequiredTokens(buffer, rule) && searchAndReplace(buffer, rule.parsedPattern,
+					rule.replacement, sessionId, oracleTempPrefix, startToken)) || !hasBlankLinesRemoved) {
+				removeBlankLines(buffer); // removes blank lines from each sql statement
+				hasBlankLinesRemoved = true;
+				if (isChunk && !StatementChunks.endsAtStatementEnd(buffer))
+					return null;
+			}
 		}
-		return sql.replaceAll("(?m)^[ \t]*\r?\n", ""); // removes blank lines from final sql statement
+		if (!hasBlankLinesRemoved)
+			removeBlankLines(buffer); // removes blank lines from final sql statement
+		return buffer.toString();
+	}
+
+	/**
+	 * Translates a chunk of a script as split by StatementChunks with the replacement patterns only. Returns null if the
+	 * chunk is not the last one and applying a rule changes the way it ends, in which case the chunk can't be translated
+	 * on its own.
+	 */
+	static String translateChunk(String sql, CompiledDialect compiledDialect, String sessionId, String oracleTempPrefix,
+			boolean isLastChunk) {
+		return translateSql(sql, compiledDialect, sessionId, oracleTempPrefix, !isLastChunk);
+	}
+
+	/**
+	 * Translates the statements of a script in parallel, in chunks split by StatementChunks. Falls back to translating the
+	 * script at once when the dialect has rules that can span statements, or when applying a rule changes the end of a
+	 * chunk. StatementChunks doesn't split after quotes that search would read differently from the tokenizer, so either
+	 * way the result is the same as that of translateSql.
+	 */
+	private static String translateStatements(String sql, final CompiledDialect compiledDialect, final String sessionId,
+			final String oracleTempPrefix, ExecutorService executor) {
+		if (compiledDialect.hasRulesSpanningStatements())
+			return translateSql(sql, compiledDialect, sessionId, oracleTempPrefix);
+		int parallelism = executor instanceof ForkJoinPool ? ((ForkJoinPool) executor).getParallelism()
+				: Runtime.getRuntime().availableProcessors();
+		List<String> chunks = StatementChunks.split(sql, Math.max(MIN_CHUNK_LENGTH, sql.length() / (4 * parallelism)));
+		if (chunks.size() == 1)
+			return translateSql(sql, compiledDialect, sessionId, oracleTempPrefix);
+		List<Future<String>> futures = new ArrayList<Future<String>>();
+		for (int i = 0; i < chunks.size(); i++) {
+			final String chunk = chunks.get(i);
+			final boolean isLastChunk = i == chunks.size() - 1;
+			futures.add(executor.submit(new Callable<String>() {
+				@Override
+				public String call() {
+					return translateSql(chunk, compiledDialect, sessionId, oracleTempPrefix, !isLastChunk);
+				}
+			}));
+		}
+		StringBuilder result = new StringBuilder(sql.length());
+		boolean isSplitSafe = true;
+		try {
+			for (Future<String> future : futures) {
+				String translatedChunk = future.get();
+				if (translatedChunk == null)
+					isSplitSafe = false;
+				else
+					result.append(translatedChunk);
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error)
+				throw (Error) e.getCause();
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			for (Future<String> future : futures)
+				future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		if (!isSplitSafe)
+			return translateSql(sql, compiledDialect, sessionId, oracleTempPrefix);
+		return result.toString();
 	}
 
 	/**
@@ -487,7 +664,42 @@ public class SqlTranslate {
 	 */
 	public static String translateSqlWithPath(String sql, String targetDialect, String sessionId,
 			String tempEmulationSchema, String pathToReplacementPatterns) {
-		ensurePatternsAreLoaded(pathToReplacementPatterns);
+		return translateSqlWithPath(sql, targetDialect, sessionId, tempEmulationSchema, pathToReplacementPatterns, null);
+	}
+
+	/**
+	 * This function takes SQL in one dialect and translates it into another, like
+	 * translateSqlWithPath, but translates the statements of the SQL in parallel
+	 * on the given executor. The result is exactly the same as when translating
+	 * sequentially. Scripts that can't be split safely (including the rest of a
+	 * script after a quoted string that contains the other kind of quote), and
+	 * dialects with rules that can match across statements, are translated
+	 * sequentially on the calling thread.
+	 *
+	 * @param sql                       The SQL to be translated
+	 * @param targetDialect             The target dialect. Currently "oracle",
+	 *                                  "postgresql", and "redshift" are supported
+	 * @param sessionId                 An alphanumeric string to be used when
+	 *                                  generating unique table names (specifically
+	 *                                  for Oracle temp tables). If null, a global
+	 *                                  session ID will be generated and used for all
+	 *                                  subsequent calls to translateSql.
+	 * @param tempEmulationSchema       The name of a schema where temp tables can
+	 *                                  be created for those platforms that don't
+	 *                                  support temp tables natively. When null, the
+	 *                                  current schema is assumed to be the temp
+	 *                                  schema.
+	 * @param pathToReplacementPatterns The absolute path of the csv file containing
+	 *                                  the replacement patterns. If null, the csv
+	 *                                  file inside the jar is used.
+	 * @param executor                  The executor to translate the statements on,
+	 *                                  for instance a ForkJoinPool. If null, the SQL
+	 *                                  is translated sequentially.
+	 * @return The translated SQL
+	 */
+	public static String translateSqlWithPath(String sql, String targetDialect, String sessionId,
+			String tempEmulationSchema, String pathToReplacementPatterns, ExecutorService executor) {
+		RuleSet rules = ensurePatternsAreLoaded(pathToReplacementPatterns);
 		if (sessionId == null) {
 			sessionId = getGlobalSessionId();
 		} else
@@ -498,23 +710,74 @@ public class SqlTranslate {
 		else
 			oracleTempPrefix = tempEmulationSchema + ".";
 
-		List<String[]> replacementPatterns = targetToReplacementPatterns.get(targetDialect);
-		if (replacementPatterns == null) {
-			throw new RuntimeException("Don't know how to translate to " + targetDialect
-					+ ". Valid target dialects are " + StringUtils.join(targetToReplacementPatterns.keySet(), ", "));
-		} else if (targetDialect.equalsIgnoreCase(BIG_QUERY)) {
+		CompiledDialect compiledDialect = getCompiledDialect(rules, targetDialect);
+		TranslationCache cache = translationCache;
+		String cacheKey = null;
+		if (cache != null) {
+			cacheKey = TranslationCache.getKey(sql, targetDialect, sessionId, oracleTempPrefix, rules.getVersion());
+			String cachedSql = cache.get(cacheKey);
+			if (cachedSql != null)
+				return cachedSql;
+		}
+		if (targetDialect.equalsIgnoreCase(BIG_QUERY)) {
 			sql = BigQuerySparkTranslate.translatebigQuery(sql);
 		} else if (targetDialect.equalsIgnoreCase(SPARK)) {
 			sql = BigQuerySparkTranslate.translateSpark(sql);
 		}
-		sql = translateSql(sql, replacementPatterns, sessionId, oracleTempPrefix);
+		if (executor == null)
+			sql = translateSql(sql, compiledDialect, sessionId, oracleTempPrefix);
+		else
+			sql = translateStatements(sql, compiledDialect, sessionId, oracleTempPrefix, executor);
 		if (targetDialect.equalsIgnoreCase(IMPALA) || targetDialect.equalsIgnoreCase(BIG_QUERY) || targetDialect.equals(SPARK)) {
 			sql = StringUtils.replaceWithConcat(sql);
 		}
+		if (cache != null)
+			cache.put(cacheKey, sql);
 		return sql;
 	}
 
-	private static void validateSessionId(String sessionId) {
+	/**
+	 * Turns on caching of translation results, so translating the same SQL again
+	 * for the same dialect, session ID, and temp emulation schema returns the
+	 * earlier result. Cached results are never reused after the replacement
+	 * patterns have been reloaded. Any previously cached results are discarded.
+	 *
+	 * @param maxBytes The maximum total size of the cached translations, in bytes.
+	 *                 Set to 0 to turn off caching (the default).
+	 */
+	public static void setTranslationCacheSize(long maxBytes) {
+		translationCache = maxBytes > 0 ? new TranslationCache(maxBytes) : null;
+	}
+
+	/**
+	 * Returns the translation cache, for instance to get its hit and miss counts,
+	 * or null if caching is turned off.
+	 */
+	public static TranslationCache getTranslationCache() {
+		return translationCache;
+	}
+
+	/**
+	 * Returns the compiled replacement patterns of the target dialect, or throws an error if the rule set has none.
+	 */
+	static CompiledDialect getCompiledDialect(RuleSet rules, String targetDialect) {
+		CompiledDialect compiledDialect = rules.getCompiledDialect(targetDialect);
+		if (compiledDialect == null)
+			throw new RuntimeException("Don't know how to translate to " + targetDialect
+					+ ". Valid target dialects are " + StringUtils.join(rules.getTargetDialects(), ", "));
+		return compiledDialect;
+	}
+
+	/**
+	 * Returns true if translating to the dialect involves steps other than the replacement patterns, which are applied to
+	 * the script as a whole.
+	 */
+	static boolean hasScriptLevelSteps(String targetDialect) {
+		return targetDialect.equalsIgnoreCase(IMPALA) || targetDialect.equalsIgnoreCase(BIG_QUERY)
+				|| targetDialect.equalsIgnoreCase(SPARK);
+	}
+
+	static void validateSessionId(String sessionId) {
 		if (sessionId.length() != SESSION_ID_LENGTH)
 			throw new RuntimeException(
 					"Session ID has length " + sessionId.length() + ", should be " + SESSION_ID_LENGTH);
@@ -541,59 +804,19 @@ public class SqlTranslate {
 		return sb.toString();
 	}
 
-	private static List<String> line2columns(String line) {
-		List<String> columns = StringUtils.safeSplit(line, ',');
-		for (int i = 0; i < columns.size(); i++) {
-			String column = columns.get(i);
-			if (column.startsWith("\"") && column.endsWith("\"") && column.length() > 1)
-				column = column.substring(1, column.length() - 1);
-			column = column.replace("\\\"", "\"");
-			column = column.replace("\\n", "\n");
-			columns.set(i, column);
-		}
-		return columns;
-	}
-
-	private static void ensurePatternsAreLoaded(String pathToReplacementPatterns) {
-		if (targetToReplacementPatterns != null)
-			return;
-		else {
-			lock.lock();
-			if (targetToReplacementPatterns == null) { // Could have been loaded before acquiring the lock
-				try {
-					InputStream inputStream;
-					if (pathToReplacementPatterns == null) // Use CSV file in JAR
-						inputStream = SqlTranslate.class.getResourceAsStream("/inst/csv/replacementPatterns.csv");
-					else
-						inputStream = new FileInputStream(pathToReplacementPatterns);
-					BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
-					targetToReplacementPatterns = new HashMap<String, List<String[]>>();
-					String line;
-					boolean first = true;
-					while ((line = bufferedReader.readLine()) != null) {
-						if (first) { // Skip first line
-							first = false;
-							continue;
-						}
-						List<String> row = line2columns(line);
-						String target = row.get(0);
-						List<String[]> replacementPatterns = targetToReplacementPatterns.get(target);
-						if (replacementPatterns == null) {
-							replacementPatterns = new ArrayList<String[]>();
-							targetToReplacementPatterns.put(target, replacementPatterns);
-						}
-						replacementPatterns.add(
-								new String[] { row.get(1).replaceAll("@", "@@"), row.get(2).replaceAll("@", "@@") });
-					}
-				} catch (UnsupportedEncodingException e) {
-					System.err.println("Computer does not support UTF-8 encoding");
-					e.printStackTrace();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-			lock.unlock();
-		}
+	/**
+	 * Returns the rule set to translate with. When a path is specified, this is the rule set of that file, which is
+	 * compiled once and kept side by side with the rule sets of other files. Otherwise it is the current rule set, which
+	 * is the one in the jar unless setReplacementPatterns() has been called.
+	 */
+	static RuleSet ensurePatternsAreLoaded(String pathToReplacementPatterns) {
+		if (pathToReplacementPatterns != null)
+			return ruleSetRegistry.get(pathToReplacementPatterns);
+		RuleSet rules = ruleSet.get();
+		if (rules != null)
+			return rules;
+		ruleSet.compareAndSet(null, ruleSetRegistry.get(null));
+		return ruleSet.get();
 	}
 
 	public static String[] check(String sql, String targetDialect) {
@@ -629,16 +852,67 @@ public class SqlTranslate {
 	}
 
 	/**
-	 * Forces the replacement patterns to be loaded from the specified path. Useful
-	 * for debugging.
+	 * Forces the replacement patterns to be loaded from the specified path, and
+	 * uses them for all translations that do not specify a path. Useful for
+	 * debugging. Translations running on other threads keep using the previous
+	 * patterns until the new patterns have been loaded completely.
 	 *
 	 * @param pathToReplacementPatterns The absolute path of the csv file containing
 	 *                                  the replacement patterns. If null, the csv
 	 *                                  file inside the jar is used.
 	 */
 	public static void setReplacementPatterns(String pathToReplacementPatterns) {
-		targetToReplacementPatterns = null;
-		ensurePatternsAreLoaded(pathToReplacementPatterns);
+		ruleSet.set(ruleSetRegistry.reload(pathToReplacementPatterns));
+	}
+
+	/**
+	 * Loads the replacement patterns from the specified path on the given
+	 * executor, and replaces the patterns used by translations that do not
+	 * specify a path once they have been loaded.
+	 * Translations keep using the current patterns in the meantime, and are
+	 * never blocked. The executor belongs to the caller, who is responsible for
+	 * shutting it down.
+	 *
+	 * @param pathToReplacementPatterns The absolute path of the csv file containing
+	 *                                  the replacement patterns. If null, the csv
+	 *                                  file inside the jar is used.
+	 * @param executor                  The executor to load the patterns on.
+	 * @return A future that completes with the new rule set once it is in use, or
+	 *         with the error if loading failed. On error, the current patterns
+	 *         stay in use.
+	 */
+	public static Future<RuleSet> reloadReplacementPatterns(final String pathToReplacementPatterns,
+			ExecutorService executor) {
+		return executor.submit(new Callable<RuleSet>() {
+			@Override
+			public RuleSet call() {
+				RuleSet rules = ruleSetRegistry.reload(pathToReplacementPatterns);
+				ruleSet.set(rules);
+				return rules;
+			}
+		});
+	}
+
+	/**
+	 * Returns the version of the replacement patterns used by translations that do
+	 * not specify a path, loading the patterns in the jar if none have been loaded
+	 * yet. The version changes every time the patterns are (re)loaded.
+	 */
+	public static long getReplacementPatternsVersion() {
+		return getReplacementPatternsVersion(null);
+	}
+
+	/**
+	 * Returns the version of the replacement patterns in the specified file,
+	 * loading the file if it hasn't been loaded yet or has changed since.
+	 *
+	 * @param pathToReplacementPatterns The absolute path of the csv file containing
+	 *                                  the replacement patterns. If null, the
+	 *                                  patterns used by translations that do not
+	 *                                  specify a path are used.
+	 */
+	public static long getReplacementPatternsVersion(String pathToReplacementPatterns) {
+		return ensurePatternsAreLoaded(pathToReplacementPatterns).getVersion();
 	}
 
 	/**
@@ -0,0 +1,281 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a SQL script into chunks of whole statements that can be translated separately. Translating the chunks and
+ * joining the results gives the same SQL as translating the script at once, as long as no rule of the dialect spans
+ * statements (see CompiledDialect.hasRulesSpanningStatements) and every chunk still ends the same way after each rule has
+ * been applied (see endsAtStatementEnd).<br/>
+ * <br/>
+ * A chunk ends with a semicolon that is not in quotes, comments, brackets, parentheses, or a BEGIN ... END or CASE ... END
+ * block, followed by nothing but white space up to and including a line break. Quotes and comments are recognized the same
+ * way as by StringUtils.tokenizeSql. Unlike SqlSplit.splitSql, nothing is removed, so the chunks add up to the original
+ * script.<br/>
+ * <br/>
+ * The script is not split after a quoted string that contains the other kind of quote (for instance "it's", or an
+ * unterminated ' that is closed by a quote inside a double quoted name further on). SqlTranslate.search then no longer
+ * agrees with the tokenizer on what is in quotes, so a partial match can carry its state across statements.<br/>
+ * <br/>
+ * The script is read incrementally, so only the current chunk needs to be in memory.
+ */
+public class StatementChunks {
+	// The tokenizer looks ahead up to 5 characters when deciding whether a comment starts:
+	private static final int	LOOK_AHEAD			= 6;
+	private static final int	READ_SIZE			= 8192;
+
+	private Reader				reader;
+	private boolean				isTemplate;
+	private StringBuilder		buffer				= new StringBuilder();
+	private char[]				readBuffer			= new char[READ_SIZE];
+	private int					cursor				= 0;
+	private boolean				isEndOfInput		= false;
+
+	private boolean				lineComment			= false;
+	private boolean				blockComment		= false;
+	private boolean				inSingleQuotes		= false;
+	private boolean				inDoubleQuotes		= false;
+	private int					wordStart			= -1;
+	private boolean				bracket				= false;
+	private int					blocks				= 0;
+	private int					parentheses			= 0;
+	private int					curlyBrackets		= 0;
+	private boolean				isEndPending		= false;
+	private boolean				isUnbalanced		= false;
+	private boolean				isAfterStatement	= false;
+
+	/**
+	 * @param reader
+	 *            The SQL script
+	 * @param isTemplate
+	 *            If true, the script is parameterized SQL that still needs to be rendered, and it is never split inside
+	 *            curly brackets, so if-then-else blocks and defaults stay in one chunk.
+	 */
+	public StatementChunks(Reader reader, boolean isTemplate) {
+		this.reader = reader;
+		this.isTemplate = isTemplate;
+	}
+
+	/**
+	 * Splits the SQL into chunks, joining consecutive statements until a chunk is at least the minimum length. If the SQL
+	 * cannot be split safely, the result is a single chunk.
+	 *
+	 * @param sql
+	 *            The SQL script
+	 * @param minChunkLength
+	 *            The minimum length of a chunk. The last chunk can be shorter.
+	 * @return The chunks, in order
+	 */
+	public static List<String> split(String sql, int minChunkLength) {
+		List<String> chunks = new ArrayList<String>();
+		if (sql.toLowerCase().length() != sql.length()) {
+			// Token offsets are relative to the lower case SQL:
+			chunks.add(sql);
+			return chunks;
+		}
+		StatementChunks statementChunks = new StatementChunks(new StringReader(sql), false);
+		StringBuilder chunk = new StringBuilder();
+		try {
+			String statements = statementChunks.next();
+			while (statements != null) {
+				chunk.append(statements);
+				if (chunk.length() >= minChunkLength) {
+					chunks.add(chunk.toString());
+					chunk.setLength(0);
+				}
+				statements = statementChunks.next();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (chunk.length() != 0 || chunks.size() == 0)
+			chunks.add(chunk.toString());
+		return chunks;
+	}
+
+	/**
+	 * Returns the next chunk, which holds one or more statements, or null when the end of the script has been reached. The
+	 * last chunk holds whatever follows the last statement that could be split off.
+	 */
+	public String next() throws IOException {
+		while (true) {
+			if (!isEndOfInput && buffer.length() < cursor + LOOK_AHEAD) {
+				int count = reader.read(readBuffer);
+				if (count == -1)
+					isEndOfInput = true;
+				else
+					buffer.append(readBuffer, 0, count);
+			} else if (cursor == buffer.length()) {
+				if (buffer.length() == 0)
+					return null;
+				return takeChunk();
+			} else if (scan()) {
+				return takeChunk();
+			}
+		}
+	}
+
+	private String takeChunk() {
+		String chunk = buffer.substring(0, cursor);
+		buffer.delete(0, cursor);
+		cursor = 0;
+		return chunk;
+	}
+
+	/**
+	 * Scans the character at the cursor, following StringUtils.tokenizeSql.
+	 *
+	 * @return true if a chunk ends after the character
+	 */
+	private boolean scan() {
+		char ch = buffer.charAt(cursor);
+		if (isTemplate) {
+			if (ch == '{')
+				curlyBrackets++;
+			else if (ch == '}' && curlyBrackets > 0)
+				curlyBrackets--;
+		}
+		boolean isEndOfChunk = false;
+		if (lineComment) {
+			if (ch == '\n')
+				lineComment = false;
+		} else if (blockComment) {
+			if (ch == '/' && cursor > 0 && buffer.charAt(cursor - 1) == '*')
+				blockComment = false;
+		} else if (Character.isLetterOrDigit(ch) || ch == '_' || ch == '@') {
+			isAfterStatement = false;
+			if (wordStart == -1)
+				wordStart = cursor;
+		} else {
+			if (wordStart != -1) {
+				token(buffer.substring(wordStart, cursor), inSingleQuotes || inDoubleQuotes);
+				wordStart = -1;
+			}
+			boolean inQuotes = inSingleQuotes || inDoubleQuotes;
+			if (ch == '-' && charAt(cursor + 1) == '-' && !inQuotes
+					&& (buffer.length() - cursor < LOOK_AHEAD || !isHint(cursor + 2))) {
+				isAfterStatement = false;
+				lineComment = true;
+			} else if (ch == '/' && charAt(cursor + 1) == '*' && !inQuotes) {
+				isAfterStatement = false;
+				blockComment = true;
+			} else if (!Character.isWhitespace(ch)) {
+				isAfterStatement = false;
+				if ((ch == '\'' && inDoubleQuotes) || (ch == '"' && inSingleQuotes))
+					// Unbalanced quotes as far as SqlTranslate.search is concerned. Don't split from here on:
+					isUnbalanced = true;
+				if (ch == '\'' && !inDoubleQuotes)
+					inSingleQuotes = !inSingleQuotes;
+				if (ch == '"' && !inSingleQuotes)
+					inDoubleQuotes = !inDoubleQuotes;
+				token(String.valueOf(ch), inQuotes);
+			} else if (ch == '\n') {
+				isEndOfChunk = isAfterStatement;
+				isAfterStatement = false;
+			} else if (ch != ' ' && ch != '\t' && ch != '\r') {
+				isAfterStatement = false;
+			}
+		}
+		cursor++;
+		return isEndOfChunk;
+	}
+
+	private char charAt(int position) {
+		return position < buffer.length() ? buffer.charAt(position) : 0;
+	}
+
+	private boolean isHint(int position) {
+		String hint = StringUtils.HINT_KEY_WORD;
+		for (int i = 0; i < hint.length(); i++)
+			if (Character.toLowerCase(charAt(position + i)) != hint.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Keeps track of the nesting, following SqlSplit.splitSql.
+	 */
+	private void token(String text, boolean inQuotes) {
+		text = text.toLowerCase();
+		if (isEndPending) {
+			// END IF does not close a block:
+			isEndPending = false;
+			if (!text.equals("if"))
+				closeBlock();
+		}
+		if (inQuotes || text.equals("'") || text.equals("\"")) {
+			return;
+		} else if (bracket) {
+			if (text.equals("]"))
+				bracket = false;
+		} else if (text.equals("[")) {
+			bracket = true;
+		} else if (text.equals("begin") || text.equals("case")) {
+			blocks++;
+		} else if (text.equals("end")) {
+			isEndPending = true;
+		} else if (text.equals("(")) {
+			parentheses++;
+		} else if (text.equals(")")) {
+			if (parentheses > 0)
+				parentheses--;
+		} else if (text.equals(";") && blocks == 0 && parentheses == 0 && curlyBrackets == 0 && !isUnbalanced) {
+			isAfterStatement = true;
+		}
+	}
+
+	private void closeBlock() {
+		if (blocks == 0)
+			// Unbalanced END. Don't guess where the statements are:
+			isUnbalanced = true;
+		else
+			blocks--;
+	}
+
+	/**
+	 * Checks whether (translated) SQL still ends like a chunk: with a semicolon that is not in quotes or parentheses,
+	 * followed by white space only, ending in a line break. Rules are only guaranteed not to have matched across the end of
+	 * a chunk if this holds after each rule.
+	 */
+	public static boolean endsAtStatementEnd(TokenBuffer sql) {
+		int tokenCount = sql.getTokenCount();
+		if (tokenCount == 0 || !sql.textEquals(tokenCount - 1, ";") || sql.isInQuotes(tokenCount - 1))
+			return false;
+		for (int position = sql.getEnd(tokenCount - 1); position < sql.length(); position++) {
+			char ch = sql.charAt(position);
+			if (ch != ' ' && ch != '\t' && ch != '\r' && ch != '\n')
+				return false;
+		}
+		if (sql.length() == 0 || sql.charAt(sql.length() - 1) != '\n')
+			return false;
+		int parentheses = 0;
+		for (int token = 0; token < tokenCount; token++) {
+			if (sql.isInQuotes(token))
+				continue;
+			if (sql.textEquals(token, "("))
+				parentheses++;
+			else if (sql.textEquals(token, ")") && parentheses > 0)
+				parentheses--;
+		}
+		return parentheses == 0;
+	}
+}
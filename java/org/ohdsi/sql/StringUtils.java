@@ -109,11 +109,11 @@ public class StringUtils {
 					token.inQuotes = inSingleQuotes || inDoubleQuotes;
 					tokens.add(token);
 				}
-				if (ch == '-' && cursor < sql.length() && sql.charAt(cursor + 1) == '-'
+				if (ch == '-' && cursor < sql.length() - 1 && sql.charAt(cursor + 1) == '-'
 						&& !inSingleQuotes && !inDoubleQuotes 
 						&& (sql.length() - cursor < 6 || !sql.substring(cursor + 2, cursor + 6).equals(HINT_KEY_WORD))) {
 					commentType1 = true;
-				} else if (ch == '/' && cursor < sql.length() && sql.charAt(cursor + 1) == '*' && !inSingleQuotes && !inDoubleQuotes ) {
+				} else if (ch == '/' && cursor < sql.length() - 1 && sql.charAt(cursor + 1) == '*' && !inSingleQuotes && !inDoubleQuotes ) {
 					commentType2 = true;
 				} else if (!Character.isWhitespace(ch)) {
 					Token token = new Token();
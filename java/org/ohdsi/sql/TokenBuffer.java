@@ -0,0 +1,573 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.util.Locale;
+
+/**
+ * A SQL string together with its tokens (as produced by StringUtils.tokenizeSql on the lower case SQL) that can be edited in
+ * place. When part of the SQL is replaced, only the tokens around the replaced region are re-tokenized, and the offsets of
+ * the tokens after it are shifted instead of recomputed.<br/>
+ * <br/>
+ * Both the characters and the tokens are kept in gap buffers. Tokens after the gap store their offsets relative to the end
+ * of the SQL, so an edit in front of them does not require touching them. Since replacements are applied from left to
+ * right, the gaps only move forward while a pattern is being applied.<br/>
+ * <br/>
+ * Tokens are kept as offsets into the lower case SQL and the hash code of their text (the same as String.hashCode), so no
+ * strings are created while tokenizing. Use textEquals to compare the text of a token.<br/>
+ * <br/>
+ * The buffer also counts how often each token hash occurs, so callers can quickly tell that a token does not occur at all,
+ * and keeps track of the region of the SQL where tokens have changed since the last call to clearChanges().
+ */
+public class TokenBuffer implements CharSequence {
+	private static final int	IN_QUOTES		= 1;
+	private static final int	SPECIAL			= 2;	// Single non-alphanumeric character token
+	private static final int	SINGLE_AFTER	= 4;	// In single quotes after this token
+	private static final int	DOUBLE_AFTER	= 8;	// In double quotes after this token
+
+	// Re-tokenizing starts at least this many characters before an edit, because the tokenizer looks ahead up to 5
+	// characters when deciding whether a comment starts:
+	private static final int	LOOK_AHEAD		= 6;
+
+	private char[]				text;
+	private char[]				lowerText;
+	private int					gapStart;
+	private int					gapEnd;
+
+	private int[]				starts;
+	private int[]				ends;
+	private int[]				hashes;
+	private byte[]				flags;
+	private int					tokenGapStart;
+	private int					tokenGapEnd;
+
+	private HashCounts			hashToCount;
+
+	// Tokens starting before changeStart are unchanged, and tokens starting at or after changeEnd have only moved by
+	// changeDelta:
+	private int					changeStart		= -1;
+	private int					changeEnd;
+	private int					changeDelta;
+
+	private boolean				incremental;
+
+	// Only used when the lower case SQL has a different length than the SQL:
+	private String				originalSql;
+
+	public TokenBuffer(String sql) {
+		incremental = !hasContextSensitiveLowerCase(sql) && !isContextSensitiveLocale();
+		load(sql);
+	}
+
+	private void load(String sql) {
+		String lowerSql = sql.toLowerCase();
+		int capacity = lowerSql.length() + 16;
+		lowerText = new char[capacity];
+		lowerSql.getChars(0, lowerSql.length(), lowerText, 0);
+		if (lowerSql.length() == sql.length()) {
+			text = new char[capacity];
+			sql.getChars(0, sql.length(), text, 0);
+			originalSql = null;
+		} else {
+			// Offsets in the lower case SQL no longer correspond to offsets in the SQL. Tokenize the lower case SQL anyway
+			// (as search has always done), but re-tokenize everything on every edit:
+			text = null;
+			originalSql = sql;
+			incremental = false;
+		}
+		gapStart = lowerSql.length();
+		gapEnd = capacity;
+
+		int tokenCapacity = Math.max(16, lowerSql.length() / 4);
+		starts = new int[tokenCapacity];
+		ends = new int[tokenCapacity];
+		hashes = new int[tokenCapacity];
+		flags = new byte[tokenCapacity];
+		tokenGapStart = 0;
+		tokenGapEnd = tokenCapacity;
+		hashToCount = new HashCounts();
+		tokenize(0, 0, -1);
+	}
+
+	private static boolean hasContextSensitiveLowerCase(String string) {
+		// The lower case of a capital sigma depends on whether it ends a word:
+		return string.indexOf('\u03A3') != -1;
+	}
+
+	static boolean isContextSensitiveLocale() {
+		String language = Locale.getDefault().getLanguage();
+		return language.equals("tr") || language.equals("az") || language.equals("lt");
+	}
+
+	/**
+	 * Replaces part of the SQL, and updates the tokens accordingly.
+	 *
+	 * @param start
+	 *            The start of the part to replace
+	 * @param end
+	 *            The end (exclusive) of the part to replace
+	 * @param replacement
+	 *            The replacement string
+	 */
+	public void replace(int start, int end, String replacement) {
+		String lowerReplacement = replacement.toLowerCase();
+		if (!incremental || lowerReplacement.length() != replacement.length() || hasContextSensitiveLowerCase(replacement)) {
+			incremental = false;
+			String sql = toString();
+			int oldLength = lowerLength();
+			load(sql.substring(0, start) + replacement + sql.substring(end));
+			addChange(0, lowerLength(), lowerLength() - oldLength);
+			return;
+		}
+		// Find the last special token far enough in front of the edit to restart tokenizing after:
+		int restartToken = findToken(start - LOOK_AHEAD + 1) - 1;
+		while (restartToken >= 0 && (flags[physical(restartToken)] & SPECIAL) == 0)
+			restartToken--;
+		int restartPosition = 0;
+		int quoteState = 0;
+		if (restartToken >= 0) {
+			restartPosition = getEnd(restartToken);
+			quoteState = flags[physical(restartToken)] & (SINGLE_AFTER | DOUBLE_AFTER);
+		}
+		moveTokenGap(restartToken + 1);
+
+		moveGap(start);
+		gapEnd += end - start;
+		ensureGap(replacement.length());
+		replacement.getChars(0, replacement.length(), text, gapStart);
+		lowerReplacement.getChars(0, lowerReplacement.length(), lowerText, gapStart);
+		gapStart += replacement.length();
+
+		int syncPosition = tokenize(restartPosition, quoteState, start + replacement.length());
+		addChange(restartPosition, syncPosition, replacement.length() - (end - start));
+	}
+
+	private void addChange(int start, int end, int delta) {
+		if (changeStart == -1) {
+			changeStart = start;
+			changeEnd = end;
+			changeDelta = delta;
+		} else {
+			changeStart = Math.min(changeStart, start);
+			changeEnd = changeEnd >= end - delta ? changeEnd + delta : end;
+			changeDelta += delta;
+		}
+	}
+
+	public boolean hasChanges() {
+		return changeStart != -1;
+	}
+
+	/**
+	 * Returns the start of the region where tokens have changed since the last call to clearChanges(). Tokens starting
+	 * before this position are unchanged.
+	 */
+	public int getChangeStart() {
+		return changeStart;
+	}
+
+	/**
+	 * Returns the end of the region where tokens have changed since the last call to clearChanges(). Tokens starting at or
+	 * after this position are unchanged, apart from having moved by getChangeDelta() characters.
+	 */
+	public int getChangeEnd() {
+		return changeEnd;
+	}
+
+	public int getChangeDelta() {
+		return changeDelta;
+	}
+
+	public void clearChanges() {
+		changeStart = -1;
+	}
+
+	/**
+	 * Tokenizes the lower case SQL starting at the given position, replacing the tokens after the token gap. Stops as soon as
+	 * the state of the tokenizer is the same as when the old tokens were created.
+	 *
+	 * @return The position where tokenizing stopped.
+	 */
+	private int tokenize(int cursor, int quoteState, int syncFrom) {
+		int length = lowerLength();
+		int start = cursor;
+		boolean commentType1 = false; // Type 1: -- ... end of line
+		boolean commentType2 = false; // Type 2: /* .. */
+		boolean inSingleQuotes = (quoteState & SINGLE_AFTER) != 0;
+		boolean inDoubleQuotes = (quoteState & DOUBLE_AFTER) != 0;
+		for (; cursor < length; cursor++) {
+			char ch = lowerCharAt(cursor);
+			if (commentType1) {
+				if (ch == '\n') {
+					commentType1 = false;
+					start = cursor + 1;
+				}
+			} else if (commentType2) {
+				if (ch == '/' && cursor > 0 && lowerCharAt(cursor - 1) == '*') {
+					commentType2 = false;
+					start = cursor + 1;
+				}
+			} else if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != '@') {
+				if (cursor > start) {
+					addToken(start, cursor, (inSingleQuotes || inDoubleQuotes) ? IN_QUOTES : 0);
+				}
+				if (ch == '-' && cursor < length - 1 && lowerCharAt(cursor + 1) == '-' && !inSingleQuotes && !inDoubleQuotes
+						&& (length - cursor < 6 || !isHint(cursor + 2))) {
+					commentType1 = true;
+				} else if (ch == '/' && cursor < length - 1 && lowerCharAt(cursor + 1) == '*' && !inSingleQuotes && !inDoubleQuotes) {
+					commentType2 = true;
+				} else if (!Character.isWhitespace(ch)) {
+					int tokenFlags = SPECIAL | ((inSingleQuotes || inDoubleQuotes) ? IN_QUOTES : 0);
+					if (ch == '\'' && !inDoubleQuotes) {
+						inSingleQuotes = !inSingleQuotes;
+					}
+					if (ch == '"' && !inSingleQuotes) {
+						inDoubleQuotes = !inDoubleQuotes;
+					}
+					tokenFlags |= (inSingleQuotes ? SINGLE_AFTER : 0) | (inDoubleQuotes ? DOUBLE_AFTER : 0);
+					if (syncFrom != -1 && cursor >= syncFrom && isInSync(cursor, tokenFlags))
+						return cursor;
+					addToken(cursor, cursor + 1, tokenFlags);
+				}
+				start = cursor + 1;
+			}
+		}
+		if (cursor > start && !commentType1 && !commentType2) {
+			addToken(start, cursor, (inSingleQuotes || inDoubleQuotes) ? IN_QUOTES : 0);
+		}
+		// Anything left of the old tokens is no longer valid:
+		while (tokenGapEnd < starts.length)
+			discardToken();
+		return length;
+	}
+
+	private boolean isHint(int position) {
+		String hint = StringUtils.HINT_KEY_WORD;
+		for (int i = 0; i < hint.length(); i++)
+			if (lowerCharAt(position + i) != hint.charAt(i))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Discards old tokens that start before the given special token, and checks whether the first remaining old token is
+	 * that same token, with the same quote state.
+	 */
+	private boolean isInSync(int position, int tokenFlags) {
+		int length = lowerLength();
+		while (tokenGapEnd < starts.length && starts[tokenGapEnd] + length < position)
+			discardToken();
+		return tokenGapEnd < starts.length && starts[tokenGapEnd] + length == position && flags[tokenGapEnd] == tokenFlags;
+	}
+
+	private void addToken(int start, int end, int tokenFlags) {
+		// Discard old tokens overlapping with the new token:
+		int length = lowerLength();
+		while (tokenGapEnd < starts.length && starts[tokenGapEnd] + length < end)
+			discardToken();
+		if (tokenGapStart == tokenGapEnd)
+			growTokens();
+		int hash = 0;
+		for (int i = start; i < end; i++)
+			hash = 31 * hash + lowerCharAt(i);
+		starts[tokenGapStart] = start;
+		ends[tokenGapStart] = end;
+		hashes[tokenGapStart] = hash;
+		flags[tokenGapStart] = (byte) tokenFlags;
+		tokenGapStart++;
+		hashToCount.add(hash, 1);
+	}
+
+	/**
+	 * Discards the first old token after the token gap.
+	 */
+	private void discardToken() {
+		hashToCount.add(hashes[tokenGapEnd], -1);
+		tokenGapEnd++;
+	}
+
+	private void growTokens() {
+		int capacity = starts.length * 2;
+		int tail = starts.length - tokenGapEnd;
+		int[] newStarts = new int[capacity];
+		int[] newEnds = new int[capacity];
+		int[] newHashes = new int[capacity];
+		byte[] newFlags = new byte[capacity];
+		System.arraycopy(starts, 0, newStarts, 0, tokenGapStart);
+		System.arraycopy(ends, 0, newEnds, 0, tokenGapStart);
+		System.arraycopy(hashes, 0, newHashes, 0, tokenGapStart);
+		System.arraycopy(flags, 0, newFlags, 0, tokenGapStart);
+		System.arraycopy(starts, tokenGapEnd, newStarts, capacity - tail, tail);
+		System.arraycopy(ends, tokenGapEnd, newEnds, capacity - tail, tail);
+		System.arraycopy(hashes, tokenGapEnd, newHashes, capacity - tail, tail);
+		System.arraycopy(flags, tokenGapEnd, newFlags, capacity - tail, tail);
+		starts = newStarts;
+		ends = newEnds;
+		hashes = newHashes;
+		flags = newFlags;
+		tokenGapEnd = capacity - tail;
+	}
+
+	private void moveTokenGap(int token) {
+		int length = lowerLength();
+		while (tokenGapStart > token) {
+			tokenGapStart--;
+			tokenGapEnd--;
+			starts[tokenGapEnd] = starts[tokenGapStart] - length;
+			ends[tokenGapEnd] = ends[tokenGapStart] - length;
+			hashes[tokenGapEnd] = hashes[tokenGapStart];
+			flags[tokenGapEnd] = flags[tokenGapStart];
+		}
+		while (tokenGapStart < token) {
+			starts[tokenGapStart] = starts[tokenGapEnd] + length;
+			ends[tokenGapStart] = ends[tokenGapEnd] + length;
+			hashes[tokenGapStart] = hashes[tokenGapEnd];
+			flags[tokenGapStart] = flags[tokenGapEnd];
+			tokenGapStart++;
+			tokenGapEnd++;
+		}
+	}
+
+	private int physical(int token) {
+		return token < tokenGapStart ? token : token + tokenGapEnd - tokenGapStart;
+	}
+
+	// Only called when the SQL and lower case SQL have the same length:
+	private void moveGap(int position) {
+		if (position < gapStart) {
+			int count = gapStart - position;
+			System.arraycopy(text, position, text, gapEnd - count, count);
+			System.arraycopy(lowerText, position, lowerText, gapEnd - count, count);
+			gapStart -= count;
+			gapEnd -= count;
+		} else if (position > gapStart) {
+			int count = position - gapStart;
+			System.arraycopy(text, gapEnd, text, gapStart, count);
+			System.arraycopy(lowerText, gapEnd, lowerText, gapStart, count);
+			gapStart += count;
+			gapEnd += count;
+		}
+	}
+
+	private void ensureGap(int size) {
+		if (gapEnd - gapStart >= size)
+			return;
+		int tail = text.length - gapEnd;
+		int capacity = Math.max(text.length * 2, gapStart + size + tail + 16);
+		char[] newText = new char[capacity];
+		char[] newLowerText = new char[capacity];
+		System.arraycopy(text, 0, newText, 0, gapStart);
+		System.arraycopy(lowerText, 0, newLowerText, 0, gapStart);
+		System.arraycopy(text, gapEnd, newText, capacity - tail, tail);
+		System.arraycopy(lowerText, gapEnd, newLowerText, capacity - tail, tail);
+		text = newText;
+		lowerText = newLowerText;
+		gapEnd = capacity - tail;
+	}
+
+	private char lowerCharAt(int index) {
+		return index < gapStart ? lowerText[index] : lowerText[index + gapEnd - gapStart];
+	}
+
+	private String lowerSubstring(int start, int end) {
+		if (end <= gapStart)
+			return new String(lowerText, start, end - start);
+		else if (start >= gapStart)
+			return new String(lowerText, start + gapEnd - gapStart, end - start);
+		else
+			return new String(lowerText, start, gapStart - start) + new String(lowerText, gapEnd, end - gapStart);
+	}
+
+	/**
+	 * Returns the index of the first token that starts at or after the given position.
+	 */
+	public int findToken(int position) {
+		int low = 0;
+		int high = getTokenCount();
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (getStart(middle) < position)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	public int getTokenCount() {
+		return starts.length - tokenGapEnd + tokenGapStart;
+	}
+
+	/**
+	 * Returns the number of tokens with the given lower case text, plus the number of tokens with other texts that have the
+	 * same hash code. So a count of 0 means the text does not occur.
+	 */
+	public int getTokenCount(String text) {
+		return hashToCount.get(text.hashCode());
+	}
+
+	public int getStart(int token) {
+		return token < tokenGapStart ? starts[token] : starts[token + tokenGapEnd - tokenGapStart] + lowerLength();
+	}
+
+	public int getEnd(int token) {
+		return token < tokenGapStart ? ends[token] : ends[token + tokenGapEnd - tokenGapStart] + lowerLength();
+	}
+
+	/**
+	 * Returns the lower case text of the token. This creates a new string, so use textEquals to compare the text.
+	 */
+	public String getText(int token) {
+		return lowerSubstring(getStart(token), getEnd(token));
+	}
+
+	/**
+	 * Returns the hash code of the lower case text of the token, the same as getText(token).hashCode().
+	 */
+	public int getHash(int token) {
+		return hashes[physical(token)];
+	}
+
+	/**
+	 * Returns the (lower case) character of a token that is a single character, or -1 for a longer token.
+	 */
+	public int getCharacter(int token) {
+		int physicalToken = physical(token);
+		// The hash of a single character string is the character itself:
+		return ends[physicalToken] - starts[physicalToken] == 1 ? hashes[physicalToken] : -1;
+	}
+
+	/**
+	 * Checks whether the lower case text of the token equals the given text, without creating a string.
+	 */
+	public boolean textEquals(int token, String text) {
+		int physicalToken = physical(token);
+		int length = text.length();
+		if (hashes[physicalToken] != text.hashCode() || ends[physicalToken] - starts[physicalToken] != length)
+			return false;
+		int start = getStart(token);
+		for (int i = 0; i < length; i++)
+			if (lowerCharAt(start + i) != text.charAt(i))
+				return false;
+		return true;
+	}
+
+	public boolean isInQuotes(int token) {
+		return (flags[physical(token)] & IN_QUOTES) != 0;
+	}
+
+	/**
+	 * The length of the lower case SQL. Token offsets are relative to the lower case SQL, which only differs in length from
+	 * the SQL for a few special characters.
+	 */
+	private int lowerLength() {
+		return lowerText.length - gapEnd + gapStart;
+	}
+
+	@Override
+	public int length() {
+		if (originalSql != null)
+			return originalSql.length();
+		return lowerLength();
+	}
+
+	@Override
+	public char charAt(int index) {
+		if (originalSql != null)
+			return originalSql.charAt(index);
+		return index < gapStart ? text[index] : text[index + gapEnd - gapStart];
+	}
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return substring(start, end);
+	}
+
+	public String substring(int start) {
+		return substring(start, length());
+	}
+
+	public String substring(int start, int end) {
+		if (originalSql != null)
+			return originalSql.substring(start, end);
+		if (end <= gapStart)
+			return new String(text, start, end - start);
+		else if (start >= gapStart)
+			return new String(text, start + gapEnd - gapStart, end - start);
+		else
+			return new String(text, start, gapStart - start) + new String(text, gapEnd, end - gapStart);
+	}
+
+	@Override
+	public String toString() {
+		if (originalSql != null)
+			return originalSql;
+		return substring(0, length());
+	}
+
+	/**
+	 * Counts per hash code, in an open addressing hash table. Entries are never removed, only counted down to 0.
+	 */
+	private static class HashCounts {
+		private int[]		keys	= new int[64];
+		private int[]		counts	= new int[64];
+		private boolean[]	used	= new boolean[64];
+		private int			size	= 0;
+
+		private int slot(int hash) {
+			int mask = keys.length - 1;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (used[slot] && keys[slot] != hash)
+				slot = (slot + 1) & mask;
+			return slot;
+		}
+
+		public int get(int hash) {
+			int slot = slot(hash);
+			return used[slot] ? counts[slot] : 0;
+		}
+
+		public void add(int hash, int delta) {
+			int slot = slot(hash);
+			if (!used[slot]) {
+				if (2 * (size + 1) > keys.length) {
+					grow();
+					slot = slot(hash);
+				}
+				used[slot] = true;
+				keys[slot] = hash;
+				size++;
+			}
+			counts[slot] += delta;
+		}
+
+		private void grow() {
+			int[] oldKeys = keys;
+			int[] oldCounts = counts;
+			boolean[] oldUsed = used;
+			keys = new int[oldKeys.length * 2];
+			counts = new int[oldKeys.length * 2];
+			used = new boolean[oldKeys.length * 2];
+			for (int i = 0; i < oldKeys.length; i++)
+				if (oldUsed[i]) {
+					int slot = slot(oldKeys[i]);
+					used[slot] = true;
+					keys[slot] = oldKeys[i];
+					counts[slot] = oldCounts[i];
+				}
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Translates a SQL script and splits it into statements, one statement at a time. The statements are the same as those of
+ * SqlSplit.splitSql(SqlTranslate.translateSqlWithPath(...)), but the first statement is available as soon as it has been
+ * translated, so it can be executed while the rest of the script is still being translated.<br/>
+ * <br/>
+ * The script is split into statements with StatementChunks, and each statement is translated when it is needed, or ahead
+ * of time on a background thread when prefetching is turned on. Scripts that can't be translated statement by statement
+ * (because of the target dialect, or because a rule changes the end of a statement) are translated as a whole, in which
+ * case the first statement is only available once the whole script has been translated. Errors in translating a statement
+ * are thrown when that statement is reached.<br/>
+ * <br/>
+ * The iterator should be closed when it is not used to the end, so the background thread stops.
+ */
+public class TranslatedStatementIterator implements Iterator<String>, Closeable {
+	private static final Object	END_OF_SCRIPT	= new Object();
+
+	private String				sql;
+	private String				targetDialect;
+	private String				sessionId;
+	private String				tempEmulationSchema;
+	private String				pathToReplacementPatterns;
+	private CompiledDialect		compiledDialect;
+	private String				oracleTempPrefix;
+	private boolean				isWholeScript;
+
+	// Translating:
+	private StatementChunks		statementChunks;
+	private String				nextSourceChunk;
+	private boolean				isTranslationDone;
+	private BlockingQueue<Object> prefetched;
+	private Thread				prefetchThread;
+
+	// Splitting:
+	private Deque<String>		statements		= new ArrayDeque<String>();
+	private StringBuilder		unsplitSql		= new StringBuilder();
+	private boolean				isStartOfScript	= true;
+	private boolean				isSplitDone;
+
+	private static class Failure {
+		public Throwable throwable;
+
+		public Failure(Throwable throwable) {
+			this.throwable = throwable;
+		}
+	}
+
+	/**
+	 * @param sql
+	 *            The SQL to be translated
+	 * @param targetDialect
+	 *            The target dialect
+	 * @param sessionId
+	 *            An alphanumeric string to be used when generating unique table names (specifically for Oracle temp tables).
+	 *            If null, the global session ID is used.
+	 * @param tempEmulationSchema
+	 *            The name of a schema where temp tables can be created for those platforms that don't support temp tables
+	 *            natively. When null, the current schema is assumed to be the temp schema.
+	 * @param pathToReplacementPatterns
+	 *            The absolute path of the csv file containing the replacement patterns. If null, the csv file inside the jar
+	 *            is used.
+	 * @param prefetch
+	 *            The number of statements to translate ahead of time on a background thread. With 0, each statement is
+	 *            translated on the calling thread when it is needed.
+	 */
+	public TranslatedStatementIterator(String sql, String targetDialect, String sessionId, String tempEmulationSchema,
+			String pathToReplacementPatterns, int prefetch) {
+		this.sql = sql;
+		this.targetDialect = targetDialect;
+		this.tempEmulationSchema = tempEmulationSchema;
+		this.pathToReplacementPatterns = pathToReplacementPatterns;
+		RuleSet rules = SqlTranslate.ensurePatternsAreLoaded(pathToReplacementPatterns);
+		compiledDialect = SqlTranslate.getCompiledDialect(rules, targetDialect);
+		if (sessionId == null)
+			sessionId = SqlTranslate.getGlobalSessionId();
+		else
+			SqlTranslate.validateSessionId(sessionId);
+		this.sessionId = sessionId;
+		oracleTempPrefix = tempEmulationSchema == null ? "" : tempEmulationSchema + ".";
+
+		// Statements are split the same way as in the lower case SQL, unless lower casing changes the length of the SQL:
+		boolean hasSimpleLowerCase = sql.indexOf('\u0130') == -1
+				&& (tempEmulationSchema == null || tempEmulationSchema.indexOf('\u0130') == -1)
+				&& !TokenBuffer.isContextSensitiveLocale();
+		isWholeScript = !hasSimpleLowerCase || SqlTranslate.hasScriptLevelSteps(targetDialect)
+				|| compiledDialect.hasRulesSpanningStatements();
+		if (!isWholeScript)
+			statementChunks = new StatementChunks(new StringReader(sql), false);
+
+		if (prefetch > 0) {
+			prefetched = new ArrayBlockingQueue<Object>(prefetch);
+			prefetchThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					prefetch();
+				}
+			}, "SqlRender statement translator");
+			prefetchThread.setDaemon(true);
+			prefetchThread.start();
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (statements.isEmpty() && !isSplitDone)
+			split(nextTranslatedChunk());
+		return !statements.isEmpty();
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return statements.removeFirst();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Stops translating ahead of time. Statements that have not been returned yet are discarded.
+	 */
+	@Override
+	public void close() {
+		if (prefetchThread != null)
+			prefetchThread.interrupt();
+		statements.clear();
+		isSplitDone = true;
+	}
+
+	/**
+	 * Splits the translated SQL into statements. Statements are only split off up to the point where the splitter is back
+	 * in its start state, so whatever follows can be split on its own. Until then, translated SQL is collected.
+	 *
+	 * @param translatedSql
+	 *            The next translated SQL, or null at the end of the script.
+	 */
+	private void split(String translatedSql) {
+		if (translatedSql == null) {
+			isSplitDone = true;
+			if (unsplitSql.length() == 0)
+				return;
+		} else {
+			unsplitSql.append(translatedSql);
+		}
+		if (isWholeScript) {
+			if (isSplitDone)
+				statements.addAll(Arrays.asList(SqlSplit.splitSql(unsplitSql.toString())));
+			return;
+		}
+		String sql = unsplitSql.toString();
+		SqlSplit.StatementIterator iterator = new SqlSplit.StatementIterator(sql, isStartOfScript);
+		Deque<String> newStatements = new ArrayDeque<String>();
+		while (iterator.nextStatement())
+			newStatements.add(sql.substring(iterator.getStart(), iterator.getEnd()));
+		if (isSplitDone || iterator.isAtStatementEnd()) {
+			statements.addAll(newStatements);
+			if (!newStatements.isEmpty())
+				isStartOfScript = false;
+			unsplitSql.setLength(0);
+		}
+	}
+
+	private String nextTranslatedChunk() {
+		if (prefetched == null)
+			return translateNextChunk();
+		Object item;
+		try {
+			item = prefetched.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		if (item instanceof Failure) {
+			// Keep failing if called again:
+			prefetched.offer(item);
+			Throwable throwable = ((Failure) item).throwable;
+			if (throwable instanceof RuntimeException)
+				throw (RuntimeException) throwable;
+			if (throwable instanceof Error)
+				throw (Error) throwable;
+			throw new RuntimeException(throwable);
+		}
+		if (item == END_OF_SCRIPT) {
+			prefetched.offer(item);
+			return null;
+		}
+		return (String) item;
+	}
+
+	private void prefetch() {
+		try {
+			try {
+				String translatedSql = translateNextChunk();
+				while (translatedSql != null) {
+					prefetched.put(translatedSql);
+					translatedSql = translateNextChunk();
+				}
+				prefetched.put(END_OF_SCRIPT);
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Throwable throwable) {
+				prefetched.put(new Failure(throwable));
+			}
+		} catch (InterruptedException e) {
+			// Closed
+		}
+	}
+
+	/**
+	 * Translates the next statement, or the whole script if it can't be translated statement by statement.
+	 *
+	 * @return The translated SQL, or null at the end of the script.
+	 */
+	private String translateNextChunk() {
+		if (isTranslationDone)
+			return null;
+		if (isWholeScript) {
+			isTranslationDone = true;
+			return SqlTranslate.translateSqlWithPath(sql, targetDialect, sessionId, tempEmulationSchema,
+					pathToReplacementPatterns);
+		}
+		try {
+			String chunk = nextSourceChunk == null ? statementChunks.next() : nextSourceChunk;
+			if (chunk == null) {
+				isTranslationDone = true;
+				return null;
+			}
+			nextSourceChunk = statementChunks.next();
+			if (nextSourceChunk != null) {
+				String translatedChunk = SqlTranslate.translateChunk(chunk, compiledDialect, sessionId, oracleTempPrefix, false);
+				if (translatedChunk != null)
+					return translatedChunk;
+				// Translate the rest of the script at once:
+				StringBuilder rest = new StringBuilder(chunk);
+				while (nextSourceChunk != null) {
+					rest.append(nextSourceChunk);
+					nextSourceChunk = statementChunks.next();
+				}
+				chunk = rest.toString();
+			}
+			isTranslationDone = true;
+			return SqlTranslate.translateChunk(chunk, compiledDialect, sessionId, oracleTempPrefix, true);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of translation results. Entries are evicted in least recently used order once the total size of the
+ * cached translations exceeds the budget.<br/>
+ * <br/>
+ * The key of an entry is a SHA-256 hash of the input SQL together with everything else that determines the result: the
+ * target dialect, the session ID, the temp emulation schema, and the version of the rule set. A lookup therefore only
+ * costs hashing the input.
+ */
+public class TranslationCache {
+	private static final Charset				UTF8			= Charset.forName("UTF-8");
+	// Rough size of an entry apart from the translated SQL, in bytes:
+	private static final int					ENTRY_OVERHEAD	= 200;
+
+	private long								maxBytes;
+	private long								bytes			= 0;
+	private long								hits			= 0;
+	private long								misses			= 0;
+	private long								evictions		= 0;
+	private LinkedHashMap<String, String>		keyToSql		= new LinkedHashMap<String, String>(16, 0.75f, true);
+
+	/**
+	 * @param maxBytes
+	 *            The maximum total size of the cached translations, in bytes
+	 */
+	public TranslationCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Computes the cache key of a translation.
+	 */
+	public static String getKey(String sql, String targetDialect, String sessionId, String oracleTempPrefix,
+			long ruleSetVersion) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String part : new String[] { targetDialect, sessionId, oracleTempPrefix, Long.toString(ruleSetVersion), sql }) {
+				byte[] bytes = part.getBytes(UTF8);
+				// Prefix each part with its length, so parts can't run into each other:
+				digest.update((byte) (bytes.length >>> 24));
+				digest.update((byte) (bytes.length >>> 16));
+				digest.update((byte) (bytes.length >>> 8));
+				digest.update((byte) bytes.length);
+				digest.update(bytes);
+			}
+			byte[] hash = digest.digest();
+			StringBuilder key = new StringBuilder(hash.length * 2);
+			for (byte b : hash)
+				key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+			return key.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static long getSize(String translatedSql) {
+		return 2L * translatedSql.length() + ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * Returns the cached translation, or null if there is none.
+	 */
+	public synchronized String get(String key) {
+		String translatedSql = keyToSql.get(key);
+		if (translatedSql == null)
+			misses++;
+		else
+			hits++;
+		return translatedSql;
+	}
+
+	/**
+	 * Adds a translation to the cache, evicting the least recently used translations if the cache is full. Translations
+	 * larger than the whole cache are not added.
+	 */
+	public synchronized void put(String key, String translatedSql) {
+		long size = getSize(translatedSql);
+		if (size > maxBytes)
+			return;
+		String oldSql = keyToSql.put(key, translatedSql);
+		if (oldSql != null)
+			bytes -= getSize(oldSql);
+		bytes += size;
+		Iterator<Map.Entry<String, String>> iterator = keyToSql.entrySet().iterator();
+		while (bytes > maxBytes) {
+			bytes -= getSize(iterator.next().getValue());
+			iterator.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		keyToSql.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictions;
+	}
+
+	public synchronized int getEntryCount() {
+		return keyToSql.size();
+	}
+
+	/**
+	 * Returns the estimated total size of the cached translations, in bytes.
+	 */
+	public synchronized long getSizeInBytes() {
+		return bytes;
+	}
+
+	public long getMaxSizeInBytes() {
+		return maxBytes;
+	}
+}
@@ -0,0 +1,571 @@
+/*******************************************************************************
+ * Copyright 2025 Observational Health Data Sciences and Informatics
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.ohdsi.sql;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * A server that renders, translates, splits, and checks SQL for clients on the same machine, so tools that are not
+ * written in Java don't have to start a JVM and load the replacement patterns for every file.<br/>
+ * <br/>
+ * The server listens on a TCP port of the loopback address. Each request is a JSON object on a single line, and each
+ * response is a JSON object on a single line:<br/>
+ * {"id": 1, "op": "render", "sql": "SELECT * FROM &#64;a;", "parameters": {"a": "my_table"}}<br/>
+ * {"id": 2, "op": "translate", "sql": "SELECT TOP 10 * FROM a;", "targetDialect": "postgresql", "sessionId": null,
+ * "tempEmulationSchema": null}<br/>
+ * {"id": 3, "op": "split", "sql": "SELECT 1; SELECT 2;"}<br/>
+ * {"id": 4, "op": "check", "sql": "SELECT * FROM &#64;a;", "parameters": {"b": "1"}, "targetDialect": "oracle"}<br/>
+ * The response holds the id of the request and either a "result" (a string, or an array of strings for split and check)
+ * or an "error".<br/>
+ * <br/>
+ * Clients can send requests without waiting for the responses. Requests are processed concurrently by a shared pool of
+ * worker threads, and the responses of a connection are sent in the order of its requests. A connection stops reading
+ * requests while too many of its requests are pending, so a client that sends faster than the server can keep up is
+ * slowed down by TCP flow control instead of filling the memory of the server. A request longer than the maximum request
+ * length is skipped without being kept in memory, and gets an error response.
+ */
+public class TranslationServer {
+	private static final int	MAX_PENDING_REQUESTS		= 64;
+	public static final int		DEFAULT_MAX_REQUEST_LENGTH	= 16 * 1024 * 1024;
+
+	private ServerSocket		serverSocket;
+	private ExecutorService		workers;
+	private ExecutorService		connections;
+	private int					maxRequestLength;
+
+	/**
+	 * @param port
+	 *            The port to listen on. If 0, a free port is picked (see getPort).
+	 * @param threads
+	 *            The number of worker threads
+	 */
+	public TranslationServer(int port, int threads) throws IOException {
+		this(port, threads, DEFAULT_MAX_REQUEST_LENGTH);
+	}
+
+	/**
+	 * @param port
+	 *            The port to listen on. If 0, a free port is picked (see getPort).
+	 * @param threads
+	 *            The number of worker threads
+	 * @param maxRequestLength
+	 *            The maximum number of characters of a request
+	 */
+	public TranslationServer(int port, int threads, int maxRequestLength) throws IOException {
+		this.maxRequestLength = maxRequestLength;
+		serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		workers = Executors.newFixedThreadPool(Math.max(1, threads), createThreadFactory("SqlRender server worker"));
+		connections = Executors.newCachedThreadPool(createThreadFactory("SqlRender server connection"));
+	}
+
+	private static ThreadFactory createThreadFactory(final String name) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, name);
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Accepts connections until the server is closed.
+	 */
+	public void serve() throws IOException {
+		try {
+			while (true) {
+				final Socket socket = serverSocket.accept();
+				connections.submit(new Runnable() {
+					@Override
+					public void run() {
+						handleConnection(socket);
+					}
+				});
+			}
+		} catch (IOException e) {
+			if (!serverSocket.isClosed())
+				throw e;
+		}
+	}
+
+	/**
+	 * Accepts connections on a background thread until the server is closed.
+	 */
+	public void start() {
+		connections.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				serve();
+				return null;
+			}
+		});
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+		workers.shutdownNow();
+		connections.shutdownNow();
+	}
+
+	/**
+	 * Reads the requests of a connection on this thread, and writes the responses on another. The queue of pending
+	 * responses is bounded, so reading blocks when it is full.
+	 */
+	private void handleConnection(final Socket socket) {
+		final BlockingQueue<Future<String>> responses = new ArrayBlockingQueue<Future<String>>(MAX_PENDING_REQUESTS);
+		// Marks the end of the requests:
+		final Future<String> endOfRequests = CompletableFuture.completedFuture(null);
+		Future<?> writer = null;
+		try {
+			final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+			final BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+			writer = connections.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					while (true) {
+						Future<String> response = responses.take();
+						if (response == endOfRequests)
+							break;
+						String text;
+						try {
+							text = response.get();
+						} catch (ExecutionException e) {
+							text = errorResponse(null, e.getCause());
+						}
+						out.write(text);
+						out.write('\n');
+						if (responses.isEmpty())
+							out.flush();
+					}
+					out.flush();
+					return null;
+				}
+			});
+			String line = readLine(in);
+			while (line != null) {
+				if (line.length() > maxRequestLength) {
+					Future<String> response = CompletableFuture.completedFuture(errorResponse(null,
+							new RuntimeException("Request is longer than " + maxRequestLength + " characters")));
+					enqueue(responses, response, writer);
+				} else if (line.trim().length() != 0) {
+					final String request = line;
+					Future<String> response = workers.submit(new Callable<String>() {
+						@Override
+						public String call() {
+							return handleRequest(request);
+						}
+					});
+					enqueue(responses, response, writer);
+				}
+				line = readLine(in);
+			}
+			enqueue(responses, endOfRequests, writer);
+			writer.get();
+		} catch (IOException e) {
+			// The client went away
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// Writing failed, so the client went away
+		} finally {
+			if (writer != null)
+				writer.cancel(true);
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Reads a line like BufferedReader.readLine, but keeps at most maxRequestLength + 1 characters of it, so a line that is
+	 * too long is recognized by its length without being kept in memory. Returns null at the end of the input.
+	 */
+	private String readLine(BufferedReader in) throws IOException {
+		int ch = in.read();
+		if (ch == -1)
+			return null;
+		StringBuilder line = new StringBuilder();
+		while (ch != -1 && ch != '\n' && ch != '\r') {
+			if (line.length() <= maxRequestLength)
+				line.append((char) ch);
+			ch = in.read();
+		}
+		if (ch == '\r') {
+			in.mark(1);
+			if (in.read() != '\n')
+				in.reset();
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Adds a response to the queue of the writer, waiting while the queue is full. If the writer stops while waiting, throws
+	 * the exception it stopped with, instead of waiting forever.
+	 */
+	private static void enqueue(BlockingQueue<Future<String>> responses, Future<String> response, Future<?> writer)
+			throws InterruptedException, ExecutionException {
+		while (!responses.offer(response, 1, TimeUnit.SECONDS))
+			if (writer.isDone()) {
+				writer.get();
+				throw new ExecutionException("Writer stopped", null);
+			}
+	}
+
+	/**
+	 * Handles a single request.
+	 *
+	 * @param request
+	 *            The request, as a JSON object
+	 * @return The response, as a JSON object on a single line
+	 */
+	public static String handleRequest(String request) {
+		Object id = null;
+		StringBuilder response = new StringBuilder();
+		try {
+			Object parsed = new JsonParser(request).parse();
+			if (!(parsed instanceof Map))
+				throw new RuntimeException("Request is not a JSON object");
+			Map<?, ?> fields = (Map<?, ?>) parsed;
+			id = fields.get("id");
+			if (id instanceof Map || id instanceof List)
+				id = null;
+			Object result = execute(fields);
+			response.append("{\"id\":");
+			appendJson(response, id);
+			response.append(",\"result\":");
+			appendJson(response, result);
+			response.append('}');
+		} catch (Throwable e) {
+			// Errors such as a StackOverflowError on a huge statement only fail this request:
+			return errorResponse(id, e);
+		}
+		return response.toString();
+	}
+
+	private static String errorResponse(Object id, Throwable error) {
+		StringBuilder response = new StringBuilder();
+		response.append("{\"id\":");
+		appendJson(response, id);
+		response.append(",\"error\":");
+		appendJson(response, error.getMessage() == null ? error.toString() : error.getMessage());
+		response.append('}');
+		return response.toString();
+	}
+
+	private static Object execute(Map<?, ?> fields) {
+		String op = getString(fields, "op");
+		String sql = getString(fields, "sql");
+		if (op == null)
+			throw new RuntimeException("Missing op");
+		if (sql == null)
+			throw new RuntimeException("Missing sql");
+		String targetDialect = getString(fields, "targetDialect");
+		String[][] parameters = getParameters(fields);
+		if (op.equals("render")) {
+			return SqlRender.renderSql(sql, parameters[0], parameters[1]);
+		} else if (op.equals("translate")) {
+			if (targetDialect == null)
+				throw new RuntimeException("Missing targetDialect");
+			return SqlTranslate.translateSqlWithPath(sql, targetDialect, getString(fields, "sessionId"),
+					getString(fields, "tempEmulationSchema"), null);
+		} else if (op.equals("split")) {
+			return SqlSplit.splitSql(sql);
+		} else if (op.equals("check")) {
+			List<String> warnings = new ArrayList<String>();
+			if (parameters[0] != null)
+				for (String warning : SqlRender.check(sql, parameters[0], parameters[1]))
+					warnings.add(warning);
+			if (targetDialect != null)
+				for (String warning : SqlTranslate.check(sql, targetDialect))
+					warnings.add(warning);
+			return warnings.toArray(new String[warnings.size()]);
+		} else
+			throw new RuntimeException("Unknown op: " + op);
+	}
+
+	private static String getString(Map<?, ?> fields, String name) {
+		Object value = fields.get(name);
+		if (value != null && !(value instanceof String))
+			throw new RuntimeException(name + " must be a string");
+		return (String) value;
+	}
+
+	/**
+	 * Returns the names and values of the parameters, in the order they appear in the request, or nulls if there are none.
+	 */
+	private static String[][] getParameters(Map<?, ?> fields) {
+		Object value = fields.get("parameters");
+		if (value == null)
+			return new String[2][];
+		if (!(value instanceof Map))
+			throw new RuntimeException("parameters must be an object");
+		Map<?, ?> parameterToValue = (Map<?, ?>) value;
+		String[] names = new String[parameterToValue.size()];
+		String[] values = new String[parameterToValue.size()];
+		int i = 0;
+		for (Map.Entry<?, ?> pair : parameterToValue.entrySet()) {
+			if (pair.getValue() instanceof Map || pair.getValue() instanceof List)
+				throw new RuntimeException("The value of parameter " + pair.getKey() + " must be a string");
+			names[i] = (String) pair.getKey();
+			values[i] = pair.getValue() == null ? null : pair.getValue().toString();
+			i++;
+		}
+		return new String[][] { names, values };
+	}
+
+	private static void appendJson(StringBuilder json, Object value) {
+		if (value == null) {
+			json.append("null");
+		} else if (value instanceof String[]) {
+			json.append('[');
+			String[] strings = (String[]) value;
+			for (int i = 0; i < strings.length; i++) {
+				if (i != 0)
+					json.append(',');
+				appendJson(json, strings[i]);
+			}
+			json.append(']');
+		} else if (value instanceof String) {
+			String string = (String) value;
+			json.append('"');
+			for (int i = 0; i < string.length(); i++) {
+				char ch = string.charAt(i);
+				switch (ch) {
+					case '"':
+						json.append("\\\"");
+						break;
+					case '\\':
+						json.append("\\\\");
+						break;
+					case '\n':
+						json.append("\\n");
+						break;
+					case '\r':
+						json.append("\\r");
+						break;
+					case '\t':
+						json.append("\\t");
+						break;
+					default:
+						if (ch < ' ' || ch == '\u2028' || ch == '\u2029')
+							json.append(String.format("\\u%04x", (int) ch));
+						else
+							json.append(ch);
+				}
+			}
+			json.append('"');
+		} else {
+			// Numbers and booleans, as parsed from the request:
+			json.append(value.toString());
+		}
+	}
+
+	/**
+	 * A minimal parser for the JSON of a request. Objects become maps (in the order of their fields), arrays become lists,
+	 * numbers stay in their original notation.
+	 */
+	private static class JsonParser {
+		private static final Pattern	NUMBER	= Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+		private String					json;
+		private int						cursor	= 0;
+
+		public JsonParser(String json) {
+			this.json = json;
+		}
+
+		public Object parse() {
+			Object value = parseValue();
+			skipWhiteSpace();
+			if (cursor != json.length())
+				throw error("Unexpected text after JSON value");
+			return value;
+		}
+
+		private RuntimeException error(String message) {
+			return new RuntimeException(message + " at position " + cursor + " of request");
+		}
+
+		private void skipWhiteSpace() {
+			while (cursor < json.length() && Character.isWhitespace(json.charAt(cursor)))
+				cursor++;
+		}
+
+		private char next() {
+			if (cursor == json.length())
+				throw error("Unexpected end of JSON");
+			return json.charAt(cursor++);
+		}
+
+		private void expect(char expected) {
+			skipWhiteSpace();
+			if (next() != expected)
+				throw error("Expected '" + expected + "'");
+		}
+
+		private Object parseValue() {
+			skipWhiteSpace();
+			if (cursor == json.length())
+				throw error("Unexpected end of JSON");
+			char ch = json.charAt(cursor);
+			if (ch == '{') {
+				cursor++;
+				Map<String, Object> object = new LinkedHashMap<String, Object>();
+				skipWhiteSpace();
+				if (cursor < json.length() && json.charAt(cursor) == '}') {
+					cursor++;
+					return object;
+				}
+				do {
+					skipWhiteSpace();
+					if (cursor == json.length() || json.charAt(cursor) != '"')
+						throw error("Expected field name");
+					String name = parseString();
+					expect(':');
+					object.put(name, parseValue());
+					skipWhiteSpace();
+				} while (next() == ',');
+				cursor--;
+				expect('}');
+				return object;
+			} else if (ch == '[') {
+				cursor++;
+				List<Object> array = new ArrayList<Object>();
+				skipWhiteSpace();
+				if (cursor < json.length() && json.charAt(cursor) == ']') {
+					cursor++;
+					return array;
+				}
+				do {
+					array.add(parseValue());
+					skipWhiteSpace();
+				} while (next() == ',');
+				cursor--;
+				expect(']');
+				return array;
+			} else if (ch == '"') {
+				return parseString();
+			} else if (json.startsWith("null", cursor)) {
+				cursor += 4;
+				return null;
+			} else if (json.startsWith("true", cursor)) {
+				cursor += 4;
+				return Boolean.TRUE;
+			} else if (json.startsWith("false", cursor)) {
+				cursor += 5;
+				return Boolean.FALSE;
+			} else {
+				int start = cursor;
+				while (cursor < json.length() && "+-0123456789.eE".indexOf(json.charAt(cursor)) != -1)
+					cursor++;
+				if (cursor == start)
+					throw error("Unexpected character '" + ch + "'");
+				String number = json.substring(start, cursor);
+				if (!NUMBER.matcher(number).matches())
+					throw error("Invalid number '" + number + "'");
+				return new JsonNumber(number);
+			}
+		}
+
+		private String parseString() {
+			cursor++;
+			StringBuilder string = new StringBuilder();
+			while (true) {
+				char ch = next();
+				if (ch == '"')
+					return string.toString();
+				if (ch != '\\') {
+					string.append(ch);
+					continue;
+				}
+				ch = next();
+				switch (ch) {
+					case 'b':
+						string.append('\b');
+						break;
+					case 'f':
+						string.append('\f');
+						break;
+					case 'n':
+						string.append('\n');
+						break;
+					case 'r':
+						string.append('\r');
+						break;
+					case 't':
+						string.append('\t');
+						break;
+					case 'u':
+						if (cursor + 4 > json.length())
+							throw error("Unexpected end of JSON");
+						try {
+							string.append((char) Integer.parseInt(json.substring(cursor, cursor + 4), 16));
+						} catch (NumberFormatException e) {
+							throw error("Invalid unicode escape");
+						}
+						cursor += 4;
+						break;
+					default:
+						string.append(ch);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A number from a request, kept as written so an id is echoed back unchanged.
+	 */
+	private static class JsonNumber {
+		private String text;
+
+		public JsonNumber(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+}